@@ -1,6 +1,5 @@
 package com.example;
 
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -17,6 +16,14 @@ import com.parsely.parselyandroid.*;
 
 public class MainActivity extends Activity {
 
+    // Immutable metadata built once is reused for every play of the same video
+    private final ImmutableParselyVideoMetadata videoMetadata = new ParselyVideoMetadata.Builder("video-1234", 90)
+            .section("videos")
+            .thumbUrl("http://example.com/thumbs/video-1234")
+            .title("Awesome Video #1234")
+            .pubDate(Calendar.getInstance())
+            .build();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -28,6 +35,15 @@ public class MainActivity extends Activity {
         // Set debugging to true so we don't actually send things to Parse.ly
         ParselyTracker.sharedInstance().setDebug(true);
 
+        // Pause engagement and video tracking automatically while the app is in the background
+        ParselyTracker.sharedInstance().enableLifecycleTracking(getApplication());
+
+        // Only count engaged time while the user interacts with the app
+        ParselyTracker.sharedInstance().enableInteractionTracking(5000);
+
+        // Upload stored events from a system job, even after the app has been killed
+        ParselyTracker.sharedInstance().enableDeferredDelivery(false, false);
+
         final TextView queueView = (TextView) findViewById(R.id.queue_size);
         queueView.setText(String.format("Queued events: %d", ParselyTracker.sharedInstance().queueSize()));
 
@@ -82,6 +98,12 @@ public class MainActivity extends Activity {
         return true;
     }
 
+    @Override
+    public void onUserInteraction() {
+        super.onUserInteraction();
+        ParselyTracker.sharedInstance().recordInteraction();
+    }
+
     @Override
     protected void onDestroy() {
         ParselyTracker.sharedInstance().flushEventQueue();
@@ -132,18 +154,8 @@ public class MainActivity extends Activity {
     }
 
     public void trackPlay(View view) {
-        ParselyVideoMetadata metadata = new ParselyVideoMetadata(
-                new ArrayList<String>(),
-                "video-1234",
-                "videos",
-                new ArrayList<String>(),
-                "http://example.com/thumbs/video-1234",
-                "Awesome Video #1234",
-                Calendar.getInstance(),
-                90
-        );
         // NOTE: For videos embedded in an article, "url" should be the URL for that article.
-        ParselyTracker.sharedInstance().trackPlay("http://example.com/app-videos", null, metadata, null);
+        ParselyTracker.sharedInstance().trackPlay("http://example.com/app-videos", null, videoMetadata, null);
 
     }
 
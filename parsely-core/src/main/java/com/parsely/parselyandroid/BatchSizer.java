@@ -0,0 +1,162 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+/*! \brief Sizes batch requests from the throughput and latency of recent uploads.
+ *
+ *  A request is modelled as taking one round trip plus its body's transfer time. Both are
+ *  estimated by a least squares fit of duration against body size over the last few requests.
+ *  Batches are then sized so a request takes about `targetMillis`: large on fast links, where
+ *  small batches would waste round trips, and small on slow ones, where large batches time out
+ *  and are resent whole. Until sizes vary enough to fit, the size doubles after fast requests
+ *  and halves after slow ones. A failed request halves the batch size.
+ *
+ *  When a batch transfers faster than a round trip the link is latency-bound, and several
+ *  batches are sent at once to overlap their round trips. Otherwise they are sent one after
+ *  the other, since parallel requests would only share the bandwidth.
+ */
+class BatchSizer {
+    static final int MIN_BATCH_EVENTS = 10;
+    static final int MAX_BATCH_EVENTS = 500;
+    static final int DEFAULT_BATCH_EVENTS = 100;
+    static final int MAX_PARALLEL_REQUESTS = 3;
+    private static final int WINDOW = 16;
+    private static final double SMOOTHING = 0.3;
+
+    private final long targetMillis;
+    private final long[] recentBytes, recentMillis;
+    private int recentCount, nextRecent;
+    private double bytesPerEvent;
+    private long rttMillis;
+    private double bytesPerMilli;
+    private int batchEvents;
+
+    /*! \brief Create a sizer.
+     *
+     * @param targetMillis How long a batch request should take.
+     */
+    BatchSizer(long targetMillis) {
+        if (targetMillis <= 0) {
+            throw new IllegalArgumentException("targetMillis must be positive.");
+        }
+        this.targetMillis = targetMillis;
+        this.recentBytes = new long[WINDOW];
+        this.recentMillis = new long[WINDOW];
+        this.batchEvents = DEFAULT_BATCH_EVENTS;
+    }
+
+    /*! \brief Number of events to put in the next batch.
+     */
+    synchronized int getBatchEvents() {
+        return this.batchEvents;
+    }
+
+    /*! \brief Number of batches to send at once.
+     */
+    synchronized int getParallelism() {
+        if (this.bytesPerMilli <= 0) {
+            return 1;
+        }
+        double transferMillis = this.batchEvents * this.bytesPerEvent / this.bytesPerMilli;
+        return transferMillis < this.rttMillis ? MAX_PARALLEL_REQUESTS : 1;
+    }
+
+    /*! \brief Estimated round trip time, or 0 before the first request.
+     */
+    synchronized long getRttMillis() {
+        return this.rttMillis;
+    }
+
+    /*! \brief Estimated bandwidth in bytes per millisecond, or 0 if not known yet.
+     */
+    synchronized double getBytesPerMilli() {
+        return this.bytesPerMilli;
+    }
+
+    /*! \brief Learn from a finished batch request.
+     *
+     * @param events    Number of events in the batch.
+     * @param bytes     Size of the request body.
+     * @param millis    How long the request took.
+     * @param succeeded Whether the batch was delivered.
+     */
+    synchronized void onRequestFinished(int events, long bytes, long millis, boolean succeeded) {
+        if (!succeeded) {
+            this.batchEvents = Math.max(MIN_BATCH_EVENTS, this.batchEvents / 2);
+            return;
+        }
+        if (events <= 0) {
+            return;
+        }
+        this.recentBytes[this.nextRecent] = bytes;
+        this.recentMillis[this.nextRecent] = millis;
+        this.nextRecent = (this.nextRecent + 1) % WINDOW;
+        this.recentCount = Math.min(WINDOW, this.recentCount + 1);
+        this.bytesPerEvent = this.bytesPerEvent <= 0
+                ? (double) bytes / events
+                : this.bytesPerEvent + SMOOTHING * ((double) bytes / events - this.bytesPerEvent);
+        this.fit();
+
+        long size;
+        if (this.bytesPerMilli > 0) {
+            // Leave at least a quarter of the target for the transfer, even on high latency links.
+            long budgetMillis = Math.max(this.targetMillis - this.rttMillis, this.targetMillis / 4);
+            size = (long) (this.bytesPerMilli * budgetMillis / this.bytesPerEvent);
+        } else if (millis < this.targetMillis / 2) {
+            size = this.batchEvents * 2L;
+        } else if (millis > this.targetMillis) {
+            size = this.batchEvents / 2;
+        } else {
+            size = this.batchEvents;
+        }
+        this.batchEvents = (int) Math.max(MIN_BATCH_EVENTS, Math.min(MAX_BATCH_EVENTS, size));
+    }
+
+    /*! \brief Fit duration = rtt + bytes / bytesPerMilli to the recent requests.
+     *
+     *  Leaves the bandwidth unknown (0) if body sizes don't vary enough to tell transfer time
+     *  from round trip time.
+     */
+    private void fit() {
+        double meanBytes = 0;
+        double meanMillis = 0;
+        long minMillis = Long.MAX_VALUE;
+        for (int i = 0; i < this.recentCount; i++) {
+            meanBytes += this.recentBytes[i];
+            meanMillis += this.recentMillis[i];
+            minMillis = Math.min(minMillis, this.recentMillis[i]);
+        }
+        meanBytes /= this.recentCount;
+        meanMillis /= this.recentCount;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < this.recentCount; i++) {
+            double dx = this.recentBytes[i] - meanBytes;
+            covariance += dx * (this.recentMillis[i] - meanMillis);
+            variance += dx * dx;
+        }
+        double spread = Math.sqrt(variance / this.recentCount);
+        if (spread < meanBytes * 0.1 || covariance <= 0) {
+            this.rttMillis = minMillis;
+            this.bytesPerMilli = 0;
+            return;
+        }
+        double millisPerByte = covariance / variance;
+        long rtt = Math.round(meanMillis - millisPerByte * meanBytes);
+        this.rttMillis = Math.max(0, Math.min(minMillis, rtt));
+        this.bytesPerMilli = 1 / millisPerByte;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*! \brief Compact column-wise encoding of event batches.
+ *
+ *  An alternative to the JSON body for servers that accept it, sent with content type
+ *  `CONTENT_TYPE`. Heartbeats of one engagement differ only in `ts`, `inc` and `tt`, so a batch
+ *  is stored as columns: the strings (`action`, `url`, `urlref`, `idsite` and the encoded rest
+ *  of each event) are dictionary coded, `ts` is delta coded and integers are varints. A
+ *  heartbeat costs about a dozen bytes instead of several hundred.
+ *
+ *  Layout, with every integer an unsigned LEB128 varint:
+ *
+ *      "PCB1" eventCount
+ *      stringCount (byteLength utf8Bytes)*
+ *      flags*  action*  url*  urlref*  idsite*  ts*  inc*  tt*  dataTail*  eventTail*
+ *
+ *  Each column holds one entry per event. Strings are dictionary indexes plus one, 0 meaning
+ *  absent. `flags` has bit 0 set if the event has `data.ts`, bit 1 for `inc`, bit 2 for `tt` and
+ *  bit 3 for `data`; absent values are written as 0. `ts` is zigzag coded as the difference to
+ *  the previous event's `ts`. The tails hold everything else as in `HeartbeatTemplate`: the rest
+ *  of the `data` object and of the event object as JSON, minus their opening brace.
+ *
+ *  `decodeToJson` turns a body back into the JSON batch the regular endpoint receives, for use
+ *  as a local stand-in server in tests.
+ */
+public final class ColumnarBatchFormat {
+    public static final String CONTENT_TYPE = "application/vnd.parsely.columnar-batch";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = "PCB1".getBytes(UTF_8);
+    private static final int HAS_TS = 1;
+    private static final int HAS_INC = 2;
+    private static final int HAS_TT = 4;
+    private static final int HAS_DATA = 8;
+    private static final String[] STRING_COLUMNS = {"action", "url", "urlref", "idsite"};
+
+    private ColumnarBatchFormat() {
+    }
+
+    /*! \brief Encode a batch.
+     *
+     * @param events    The events to encode.
+     * @param visitorId The visitor ID to add to the `data` of events lacking one, or null.
+     * @return          The encoded body.
+     */
+    static byte[] encode(List<Map<String, Object>> events, String visitorId) {
+        Encoder encoder = new Encoder(visitorId);
+        for (Map<String, Object> event : events) {
+            encoder.add(event);
+        }
+        return encoder.finish(events.size());
+    }
+
+    /*! \brief Decode a body into the equivalent JSON batch, `{"events":[...]}`.
+     *
+     * @param body A body produced by this format.
+     * @return     The UTF-8 encoded JSON.
+     * @throws IllegalArgumentException If the body is malformed.
+     */
+    public static byte[] decodeToJson(byte[] body) {
+        Reader in = new Reader(body);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IllegalArgumentException("Not a columnar batch.");
+            }
+        }
+        // Every event takes at least one byte per column and every string at least its length.
+        int count = in.readCount(1);
+        int stringCount = in.readCount(1);
+        byte[][] strings = new byte[stringCount][];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = in.readBytes(in.readCount(1));
+        }
+        in.requireRemaining(count, 10);
+        long[][] columns = new long[10][count];
+        for (long[] column : columns) {
+            for (int i = 0; i < count; i++) {
+                column[i] = in.readVarint();
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count * 256);
+        writeAscii(out, "{\"events\":[");
+        long ts = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            int flags = (int) columns[0][i];
+            out.write('{');
+            boolean first = true;
+            for (int c = 0; c < STRING_COLUMNS.length; c++) {
+                byte[] value = string(strings, columns[c + 1][i]);
+                if (value != null) {
+                    first = member(out, STRING_COLUMNS[c], first);
+                    out.write(value, 0, value.length);
+                }
+            }
+            if ((flags & HAS_INC) != 0) {
+                first = member(out, "inc", first);
+                JsonWriter.writeLong(out, columns[6][i]);
+            }
+            if ((flags & HAS_TT) != 0) {
+                first = member(out, "tt", first);
+                JsonWriter.writeLong(out, columns[7][i]);
+            }
+            if ((flags & HAS_DATA) != 0) {
+                first = member(out, "data", first);
+                out.write('{');
+                boolean firstInData = true;
+                if ((flags & HAS_TS) != 0) {
+                    ts += unzigzag(columns[5][i]);
+                    member(out, "ts", true);
+                    JsonWriter.writeLong(out, ts);
+                    firstInData = false;
+                }
+                writeTail(out, string(strings, columns[8][i]), firstInData);
+            }
+            writeTail(out, string(strings, columns[9][i]), first);
+        }
+        writeAscii(out, "]}");
+        return out.toByteArray();
+    }
+
+    /*! \brief Builds the dictionary and columns of one batch.
+     */
+    private static final class Encoder {
+        private final String visitorId;
+        private final HashMap<String, Integer> dictionary = new HashMap<>();
+        private final ArrayList<byte[]> strings = new ArrayList<>();
+        private final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[10];
+        // Heartbeat tails depend only on the template, so they're encoded once per batch.
+        private final IdentityHashMap<HeartbeatTemplate, long[]> templateTails = new IdentityHashMap<>();
+        private long previousTs;
+
+        Encoder(String visitorId) {
+            this.visitorId = visitorId;
+            for (int i = 0; i < this.columns.length; i++) {
+                this.columns[i] = new ByteArrayOutputStream();
+            }
+        }
+
+        void add(Map<String, Object> event) {
+            if (event instanceof HeartbeatEvent && ((HeartbeatEvent) event).getSamplingRate() >= 1) {
+                // Only ts, inc and tt vary between heartbeats of one engagement.
+                HeartbeatEvent heartbeat = (HeartbeatEvent) event;
+                long[] tails = this.templateTails.get(heartbeat.getTemplate());
+                if (tails == null) {
+                    tails = this.encodeTails(event);
+                    this.templateTails.put(heartbeat.getTemplate(), tails);
+                }
+                this.addColumns(event, HAS_TS | HAS_INC | HAS_TT | HAS_DATA,
+                        heartbeat.getTs(), heartbeat.getInc(), heartbeat.getTt(), tails);
+                return;
+            }
+
+            int flags = 0;
+            Object data = event.get("data");
+            Object ts = data instanceof Map ? ((Map<?, ?>) data).get("ts") : null;
+            Object inc = event.get("inc");
+            Object tt = event.get("tt");
+            if (data instanceof Map || (data == null && this.visitorId != null)) {
+                flags |= HAS_DATA;
+                if (isInteger(ts)) {
+                    flags |= HAS_TS;
+                }
+            }
+            if (isCount(inc)) {
+                flags |= HAS_INC;
+            }
+            if (isCount(tt)) {
+                flags |= HAS_TT;
+            }
+            this.addColumns(event, flags,
+                    (flags & HAS_TS) != 0 ? ((Number) ts).longValue() : 0,
+                    (flags & HAS_INC) != 0 ? ((Number) inc).longValue() : 0,
+                    (flags & HAS_TT) != 0 ? ((Number) tt).longValue() : 0,
+                    this.encodeTails(event));
+        }
+
+        private void addColumns(Map<String, Object> event, int flags, long ts, long inc, long tt, long[] tails) {
+            writeVarint(this.columns[0], flags);
+            for (int c = 0; c < STRING_COLUMNS.length; c++) {
+                Object value = event.get(STRING_COLUMNS[c]);
+                writeVarint(this.columns[c + 1], value instanceof String ? this.intern((String) value) : 0);
+            }
+            if ((flags & HAS_TS) != 0) {
+                writeVarint(this.columns[5], zigzag(ts - this.previousTs));
+                this.previousTs = ts;
+            } else {
+                writeVarint(this.columns[5], 0);
+            }
+            writeVarint(this.columns[6], inc);
+            writeVarint(this.columns[7], tt);
+            writeVarint(this.columns[8], tails[0]);
+            writeVarint(this.columns[9], tails[1]);
+        }
+
+        /*! \brief Encode and intern the parts of an event that don't have a column.
+         *
+         * @return The dictionary references of the `data` tail and the event tail.
+         */
+        private long[] encodeTails(Map<String, Object> event) {
+            Map<String, Object> rest = new HashMap<>(event);
+            for (String key : STRING_COLUMNS) {
+                if (rest.get(key) instanceof String) {
+                    rest.remove(key);
+                }
+            }
+            if (isCount(rest.get("inc"))) {
+                rest.remove("inc");
+            }
+            if (isCount(rest.get("tt"))) {
+                rest.remove("tt");
+            }
+            long dataTail = 0;
+            Object data = rest.remove("data");
+            if (data instanceof Map || (data == null && this.visitorId != null)) {
+                Map<Object, Object> restOfData = data != null ? new HashMap<Object, Object>((Map<?, ?>) data)
+                        : new HashMap<>();
+                if (isInteger(restOfData.get("ts"))) {
+                    restOfData.remove("ts");
+                }
+                if (this.visitorId != null && !restOfData.containsKey(VisitorIdentity.DATA_KEY)) {
+                    restOfData.put(VisitorIdentity.DATA_KEY, this.visitorId);
+                }
+                dataTail = this.intern(HeartbeatTemplate.tail(JsonWriter.toBytes(restOfData)));
+            } else if (data != null) {
+                rest.put("data", data);  // not an object; keep it as is
+            }
+            return new long[]{dataTail, this.intern(HeartbeatTemplate.tail(JsonWriter.toBytes(rest)))};
+        }
+
+        private int intern(String value) {
+            return this.intern(JsonWriter.toBytes(value));
+        }
+
+        private int intern(byte[] value) {
+            String key = new String(value, UTF_8);
+            Integer index = this.dictionary.get(key);
+            if (index == null) {
+                this.strings.add(value);
+                index = this.strings.size();
+                this.dictionary.put(key, index);
+            }
+            return index;
+        }
+
+        byte[] finish(int count) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256 + count * 16);
+            out.write(MAGIC, 0, MAGIC.length);
+            writeVarint(out, count);
+            writeVarint(out, this.strings.size());
+            for (byte[] string : this.strings) {
+                writeVarint(out, string.length);
+                out.write(string, 0, string.length);
+            }
+            for (ByteArrayOutputStream column : this.columns) {
+                byte[] bytes = column.toByteArray();
+                out.write(bytes, 0, bytes.length);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /*! \brief Reads varints and byte strings, rejecting truncated input.
+     */
+    private static final class Reader {
+        private final byte[] body;
+        private int position;
+
+        Reader(byte[] body) {
+            this.body = body;
+        }
+
+        byte readByte() {
+            if (this.position >= this.body.length) {
+                throw new IllegalArgumentException("Truncated columnar batch.");
+            }
+            return this.body[this.position++];
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = this.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in columnar batch.");
+        }
+
+        /*! \brief Read a count of items, rejecting counts the rest of the body can't hold.
+         *
+         * @param minItemBytes The fewest bytes an item can be encoded in.
+         */
+        int readCount(int minItemBytes) {
+            long value = this.readVarint();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Implausible count in columnar batch.");
+            }
+            this.requireRemaining(value, minItemBytes);
+            return (int) value;
+        }
+
+        void requireRemaining(long items, int minItemBytes) {
+            if (items > (this.body.length - this.position) / minItemBytes) {
+                throw new IllegalArgumentException("Truncated columnar batch.");
+            }
+        }
+
+        byte[] readBytes(int length) {
+            if (length > this.body.length - this.position) {
+                throw new IllegalArgumentException("Truncated columnar batch.");
+            }
+            byte[] output = new byte[length];
+            System.arraycopy(this.body, this.position, output, 0, length);
+            this.position += length;
+            return output;
+        }
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static boolean isCount(Object value) {
+        return isInteger(value) && ((Number) value).longValue() >= 0;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] string(byte[][] strings, long reference) {
+        if (reference == 0) {
+            return null;
+        }
+        if (reference > strings.length) {
+            throw new IllegalArgumentException("Unknown string in columnar batch.");
+        }
+        return strings[(int) reference - 1];
+    }
+
+    /*! \brief Write a member name, preceded by a comma unless it's the first.
+     *
+     * @return False: the next member isn't the first.
+     */
+    private static boolean member(ByteArrayOutputStream out, String name, boolean first) {
+        if (!first) {
+            out.write(',');
+        }
+        JsonWriter.writeString(out, name);
+        out.write(':');
+        return false;
+    }
+
+    /*! \brief Write a tail, closing an object; without its comma if nothing preceded it.
+     */
+    private static void writeTail(ByteArrayOutputStream out, byte[] tail, boolean first) {
+        if (tail == null) {
+            out.write('}');
+            return;
+        }
+        int offset = first && tail.length > 1 && tail[0] == ',' ? 1 : 0;
+        out.write(tail, offset, tail.length - offset);
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
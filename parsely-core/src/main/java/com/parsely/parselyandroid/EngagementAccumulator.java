@@ -0,0 +1,100 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+/*! \brief Measures engaged time from user interactions and screen state.
+ *
+ *  The user counts as engaged from each interaction (touch, scroll, key press) until
+ *  `idleTimeoutMillis` have passed without another one, and never while the screen is off.
+ *  Screen-on time is measured separately for video, which is engaging without interaction.
+ *
+ *  Both measurements are running totals: each engagement keeps its own reading and sends
+ *  the difference, so any number of engagements can share one accumulator. All times are
+ *  on a monotonic clock (`ParselyClock.elapsedMillis()`).
+ */
+class EngagementAccumulator {
+    private final long idleTimeoutMillis;
+    private boolean screenOn;
+    private long activeUntilMillis, lastUpdateMillis;
+    private long engagedMillis, screenOnMillis;
+
+    /*! \brief Create a new accumulator.
+     *
+     * @param idleTimeoutMillis How long the user stays engaged after an interaction.
+     * @param screenOn          Whether the screen is currently on.
+     * @param nowMillis         The current monotonic time.
+     */
+    EngagementAccumulator(long idleTimeoutMillis, boolean screenOn, long nowMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be positive.");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.screenOn = screenOn;
+        this.lastUpdateMillis = nowMillis;
+        this.activeUntilMillis = nowMillis;
+    }
+
+    /*! \brief Record a user interaction, keeping the user engaged for another idle timeout.
+     */
+    synchronized void recordInteraction(long nowMillis) {
+        this.update(nowMillis);
+        if (this.screenOn) {
+            this.activeUntilMillis = nowMillis + this.idleTimeoutMillis;
+        }
+    }
+
+    /*! \brief Record the screen turning on or off.
+     *
+     *  Turning the screen off ends the current engagement immediately.
+     */
+    synchronized void setScreenOn(boolean screenOn, long nowMillis) {
+        this.update(nowMillis);
+        this.screenOn = screenOn;
+        if (!screenOn) {
+            this.activeUntilMillis = nowMillis;
+        }
+    }
+
+    /*! \brief Total engaged time measured so far.
+     *
+     * @return Engaged time in milliseconds, including time up to `nowMillis`.
+     */
+    synchronized long getEngagedMillis(long nowMillis) {
+        this.update(nowMillis);
+        return this.engagedMillis;
+    }
+
+    /*! \brief Total time the screen has been on so far.
+     *
+     * @return Screen-on time in milliseconds, including time up to `nowMillis`.
+     */
+    synchronized long getScreenOnMillis(long nowMillis) {
+        this.update(nowMillis);
+        return this.screenOnMillis;
+    }
+
+    private void update(long nowMillis) {
+        if (nowMillis <= this.lastUpdateMillis) {
+            return;
+        }
+        if (this.screenOn) {
+            this.screenOnMillis += nowMillis - this.lastUpdateMillis;
+            this.engagedMillis += Math.max(0,
+                    Math.min(nowMillis, this.activeUntilMillis) - this.lastUpdateMillis);
+        }
+        this.lastUpdateMillis = nowMillis;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.List;
+import java.util.Map;
+
+/*! \brief Strategy deciding how often engaged time heartbeats are sent.
+ *
+ *  The tracker asks the strategy for the delay before the first heartbeat of an engagement,
+ *  then for the delay before each following heartbeat. Implementations must not keep
+ *  per-engagement state: the same instance is shared by every engagement it is used for.
+ *
+ *  Strategies are set per tracker with `ParselyTracker.setEngagementIntervalStrategy()` or
+ *  per engagement with the `startEngagement()` and `trackPlay()` overloads.
+ */
+public interface EngagementIntervalStrategy {
+
+    /*! \brief Delay before the first heartbeat of an engagement.
+     *
+     * @return The delay in milliseconds.
+     */
+    long getInitialIntervalMillis();
+
+    /*! \brief Delay before the next heartbeat of an engagement.
+     *
+     * @param previousIntervalMillis The delay used before the heartbeat just sent.
+     * @param heartbeatCount         Number of heartbeats sent so far in this engagement.
+     * @return                       The delay in milliseconds.
+     */
+    long getNextIntervalMillis(long previousIntervalMillis, int heartbeatCount);
+
+    /*! \brief Send heartbeats at a constant interval.
+     */
+    class Fixed implements EngagementIntervalStrategy {
+        private final long intervalMillis;
+
+        public Fixed(long intervalMillis) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("intervalMillis must be positive.");
+            }
+            this.intervalMillis = intervalMillis;
+        }
+
+        public long getInitialIntervalMillis() {
+            return this.intervalMillis;
+        }
+
+        public long getNextIntervalMillis(long previousIntervalMillis, int heartbeatCount) {
+            return this.intervalMillis;
+        }
+    }
+
+    /*! \brief Grow the interval by a constant factor after each heartbeat, up to a maximum.
+     *
+     *  This is the tracker's default: 10.5s, growing by 25% per heartbeat up to 90s.
+     */
+    class Geometric implements EngagementIntervalStrategy {
+        private final long baseIntervalMillis, maxIntervalMillis;
+        private final double multiplier;
+
+        public Geometric(long baseIntervalMillis, double multiplier, long maxIntervalMillis) {
+            if (baseIntervalMillis <= 0 || multiplier < 1 || maxIntervalMillis < baseIntervalMillis) {
+                throw new IllegalArgumentException(
+                        "Need 0 < baseIntervalMillis <= maxIntervalMillis and multiplier >= 1.");
+            }
+            this.baseIntervalMillis = baseIntervalMillis;
+            this.multiplier = multiplier;
+            this.maxIntervalMillis = maxIntervalMillis;
+        }
+
+        public long getInitialIntervalMillis() {
+            return this.baseIntervalMillis;
+        }
+
+        public long getNextIntervalMillis(long previousIntervalMillis, int heartbeatCount) {
+            return (long) Math.min(this.maxIntervalMillis, previousIntervalMillis * this.multiplier);
+        }
+    }
+
+    /*! \brief Follow a fixed schedule of intervals, repeating the last one.
+     *
+     *  E.g. `new Stepped(10000, 10000, 30000, 60000)` sends two heartbeats 10s apart, one after
+     *  30s more and then one every minute.
+     */
+    class Stepped implements EngagementIntervalStrategy {
+        private final long[] intervalsMillis;
+
+        public Stepped(long... intervalsMillis) {
+            if (intervalsMillis == null || intervalsMillis.length == 0) {
+                throw new IllegalArgumentException("At least one interval is required.");
+            }
+            for (long interval : intervalsMillis) {
+                if (interval <= 0) {
+                    throw new IllegalArgumentException("Intervals must be positive.");
+                }
+            }
+            this.intervalsMillis = intervalsMillis.clone();
+        }
+
+        public long getInitialIntervalMillis() {
+            return this.intervalsMillis[0];
+        }
+
+        public long getNextIntervalMillis(long previousIntervalMillis, int heartbeatCount) {
+            return this.intervalsMillis[Math.min(heartbeatCount, this.intervalsMillis.length - 1)];
+        }
+    }
+
+    /*! \brief Strategy that can be replaced at runtime, e.g. from a remote configuration.
+     *
+     *  Engagements using this strategy pick up the new intervals on their next heartbeat.
+     */
+    class Remote implements EngagementIntervalStrategy {
+        private volatile EngagementIntervalStrategy delegate;
+
+        /*! \brief Create a remote strategy.
+         *
+         * @param initial Strategy to use until the first update.
+         */
+        public Remote(EngagementIntervalStrategy initial) {
+            if (initial == null) {
+                throw new NullPointerException("initial cannot be null.");
+            }
+            this.delegate = initial;
+        }
+
+        /*! \brief Replace the strategy in use.
+         *
+         * @param strategy The new strategy.
+         */
+        public void update(EngagementIntervalStrategy strategy) {
+            if (strategy == null) {
+                throw new NullPointerException("strategy cannot be null.");
+            }
+            this.delegate = strategy;
+        }
+
+        /*! \brief Replace the strategy in use from a configuration Map.
+         *
+         *  Recognized keys are `type` (`fixed`, `geometric` or `stepped`), `interval_ms` (fixed,
+         *  geometric), `multiplier` and `max_interval_ms` (geometric) and `intervals_ms`, a list
+         *  of numbers (stepped). Invalid configurations are rejected and the current strategy
+         *  is kept.
+         *
+         * @param config The configuration, e.g. parsed from a remote config JSON document.
+         * @return       Whether the configuration was applied.
+         */
+        public boolean update(Map<String, Object> config) {
+            try {
+                this.update(fromConfig(config));
+                return true;
+            } catch (RuntimeException ex) {
+                ParselyLog.w("Invalid engagement interval config %s: %s", config, ex);
+                return false;
+            }
+        }
+
+        public long getInitialIntervalMillis() {
+            return this.delegate.getInitialIntervalMillis();
+        }
+
+        public long getNextIntervalMillis(long previousIntervalMillis, int heartbeatCount) {
+            return this.delegate.getNextIntervalMillis(previousIntervalMillis, heartbeatCount);
+        }
+
+        private static EngagementIntervalStrategy fromConfig(Map<String, Object> config) {
+            String type = (String) config.get("type");
+            if ("fixed".equals(type)) {
+                return new Fixed(((Number) config.get("interval_ms")).longValue());
+            } else if ("geometric".equals(type)) {
+                return new Geometric(
+                        ((Number) config.get("interval_ms")).longValue(),
+                        ((Number) config.get("multiplier")).doubleValue(),
+                        ((Number) config.get("max_interval_ms")).longValue());
+            } else if ("stepped".equals(type)) {
+                List<?> steps = (List<?>) config.get("intervals_ms");
+                long[] intervals = new long[steps.size()];
+                for (int i = 0; i < intervals.length; i++) {
+                    intervals[i] = ((Number) steps.get(i)).longValue();
+                }
+                return new Stepped(intervals);
+            }
+            throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+}
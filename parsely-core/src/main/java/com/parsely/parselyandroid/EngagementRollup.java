@@ -0,0 +1,192 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*! \brief Table summing engaged time per engagement between summarized heartbeats.
+ *
+ *  Rows are keyed by heartbeat template, i.e. by url, urlref and video metadata, so
+ *  engagements with the same content share a row. Each row holds the engaged seconds added
+ *  since the row was last emitted, the latest total and the latest timestamp.
+ *
+ *  The table is written to its own store on the executor: at most `PERSIST_DELAY_MILLIS`
+ *  after engaged time is added, so a killed process loses at most that much, and by
+ *  `remove()` and `drain()` themselves, which must run on the executor, so emitted rows are
+ *  gone from storage before the heartbeats replacing them can be sent. `recover()` reads
+ *  back what a previous process left behind.
+ */
+class EngagementRollup {
+    static final long PERSIST_DELAY_MILLIS = 5000;
+    private static final int INC = 0, TT = 1, TS = 2;
+
+    private final LinkedHashMap<HeartbeatTemplate, long[]> rows;
+    private final EventStore store;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final Runnable persistTask;
+    private ScheduledFuture<?> delayedPersist;
+    private boolean persistPending;
+
+    /*! \brief Create an empty table.
+     *
+     * @param store     Store the table is persisted to, distinct from the event store.
+     * @param scheduler Scheduler delaying writes after engaged time is added.
+     * @param executor  Executor writing the table, e.g. the pipeline thread.
+     */
+    EngagementRollup(EventStore store, ScheduledExecutorService scheduler, Executor executor) {
+        this.rows = new LinkedHashMap<>();
+        this.store = store;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.persistTask = new Runnable() {
+            @Override
+            public void run() {
+                persist();
+            }
+        };
+    }
+
+    /*! \brief Add engaged time to an engagement's row.
+     *
+     * @param template The engagement's heartbeat template.
+     * @param ts       Timestamp of the tick, in epoch seconds.
+     * @param inc      Engaged seconds since the engagement's previous tick.
+     * @param tt       Total engaged seconds of the engagement.
+     */
+    synchronized void add(HeartbeatTemplate template, long ts, long inc, long tt) {
+        long[] row = this.rows.get(template);
+        if (row == null) {
+            row = new long[3];
+            this.rows.put(template, row);
+        }
+        row[INC] += inc;
+        row[TT] = Math.max(row[TT], tt);
+        row[TS] = ts;
+        this.persistLater();
+    }
+
+    /*! \brief Remove one row as a summarized heartbeat. Call on the executor.
+     *
+     * @param template The engagement's heartbeat template.
+     * @return         The heartbeat, or null if the row was empty.
+     */
+    HeartbeatEvent remove(HeartbeatTemplate template) {
+        long[] row;
+        synchronized (this) {
+            row = this.rows.remove(template);
+            if (row == null) {
+                return null;
+            }
+        }
+        this.persist();
+        return new HeartbeatEvent(template, row[TS], row[INC], row[TT]);
+    }
+
+    /*! \brief Remove every row as summarized heartbeats. Call on the executor.
+     *
+     * @return The heartbeats, in the order the rows were created.
+     */
+    ArrayList<Map<String, Object>> drain() {
+        ArrayList<Map<String, Object>> output;
+        synchronized (this) {
+            output = this.toEvents();
+            if (output.isEmpty()) {
+                return output;
+            }
+            this.rows.clear();
+        }
+        this.persist();
+        return output;
+    }
+
+    synchronized int size() {
+        return this.rows.size();
+    }
+
+    /*! \brief Take the summarized heartbeats a previous process persisted but never emitted.
+     *
+     * @param store The table's store.
+     * @return      The heartbeats, removed from the store.
+     */
+    static ArrayList<Map<String, Object>> recover(EventStore store) {
+        store.lock();
+        try {
+            ArrayList<Map<String, Object>> output = store.load();
+            if (!output.isEmpty()) {
+                store.purge();
+            }
+            return output;
+        } finally {
+            store.unlock();
+        }
+    }
+
+    /*! \brief Write the table within `PERSIST_DELAY_MILLIS`, once for all changes until then.
+     */
+    private void persistLater() {
+        if (this.persistPending || this.delayedPersist != null) {
+            return;
+        }
+        this.delayedPersist = this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EngagementRollup.this) {
+                    delayedPersist = null;
+                    persistNow();
+                }
+            }
+        }, PERSIST_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /*! \brief Write the table after the work already submitted to the executor.
+     */
+    private void persistNow() {
+        if (!this.persistPending) {
+            this.persistPending = true;
+            this.executor.execute(this.persistTask);
+        }
+    }
+
+    private void persist() {
+        ArrayList<Map<String, Object>> events;
+        synchronized (this) {
+            if (this.delayedPersist != null) {
+                this.delayedPersist.cancel(false);
+                this.delayedPersist = null;
+            }
+            this.persistPending = false;
+            events = this.rows.isEmpty() ? null : this.toEvents();
+        }
+        // Writes run one at a time on the executor, so a later snapshot is never overwritten.
+        this.store.save(events);
+    }
+
+    private ArrayList<Map<String, Object>> toEvents() {
+        ArrayList<Map<String, Object>> output = new ArrayList<>(this.rows.size());
+        for (Map.Entry<HeartbeatTemplate, long[]> entry : this.rows.entrySet()) {
+            long[] row = entry.getValue();
+            output.add(new HeartbeatEvent(entry.getKey(), row[TS], row[INC], row[TT]));
+        }
+        return output;
+    }
+}
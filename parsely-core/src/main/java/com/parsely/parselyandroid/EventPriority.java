@@ -0,0 +1,52 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+
+import java.util.Map;
+
+/*! \brief Priority class of a tracked event.
+ *
+ *  Events in different priority classes are queued separately so that a flood of
+ *  low-value events (e.g. heartbeats during a long video session) can never evict
+ *  high-value ones (pageviews, video starts). High priority events are also sent first
+ *  when the queue is flushed.
+ */
+public enum EventPriority {
+    HIGH,
+    LOW;
+
+    /*! \brief Get the priority class for an event action.
+     *
+     * @param action The event action (e.g. pageview, heartbeat, videostart, vheartbeat)
+     * @return       The priority class for the action. Unknown actions are treated as HIGH.
+     */
+    public static EventPriority forAction(String action) {
+        if ("heartbeat".equals(action) || "vheartbeat".equals(action)) {
+            return LOW;
+        }
+        return HIGH;
+    }
+
+    /*! \brief Get the priority class for an event Map.
+     *
+     * @param event The event Map, as built by the tracker.
+     * @return      The priority class for the event.
+     */
+    static EventPriority forEvent(Map<String, Object> event) {
+        return forAction((String) event.get("action"));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.HashMap;
+import java.util.Map;
+
+/*! \brief Token bucket rate limiter, configured per event action.
+ *
+ *  Each configured action gets a bucket holding up to `burst` tokens that refills at
+ *  `eventsPerMinute`. An event may be sent only if a token can be taken from its bucket.
+ *  Actions without a configured limit are never limited.
+ */
+class EventRateLimiter {
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    /*! \brief Limit the rate of events for an action.
+     *
+     * @param action          The event action to limit (e.g. heartbeat).
+     * @param eventsPerMinute Sustained number of events allowed per minute.
+     * @param burst           Number of events that may be sent back to back.
+     */
+    synchronized void setLimit(String action, double eventsPerMinute, int burst) {
+        if (eventsPerMinute <= 0 || burst < 1) {
+            throw new IllegalArgumentException("eventsPerMinute must be positive and burst at least 1.");
+        }
+        this.buckets.put(action, new Bucket(eventsPerMinute / 60000, burst));
+    }
+
+    synchronized void removeLimit(String action) {
+        this.buckets.remove(action);
+    }
+
+    /*! \brief Take a token for an event about to be sent.
+     *
+     * @param action    The event action.
+     * @param nowMillis The current time in milliseconds.
+     * @return          Whether the event may be sent.
+     */
+    synchronized boolean tryAcquire(String action, long nowMillis) {
+        Bucket bucket = this.buckets.get(action);
+        return bucket == null || bucket.tryAcquire(nowMillis);
+    }
+
+    private static class Bucket {
+        private final double tokensPerMilli;
+        private final int capacity;
+        private double tokens;
+        private long lastRefillMillis;
+
+        Bucket(double tokensPerMilli, int capacity) {
+            this.tokensPerMilli = tokensPerMilli;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillMillis = -1;
+        }
+
+        boolean tryAcquire(long nowMillis) {
+            if (this.lastRefillMillis >= 0 && nowMillis > this.lastRefillMillis) {
+                this.tokens = Math.min(this.capacity,
+                        this.tokens + (nowMillis - this.lastRefillMillis) * this.tokensPerMilli);
+            }
+            this.lastRefillMillis = nowMillis;
+            if (this.tokens < 1) {
+                return false;
+            }
+            this.tokens -= 1;
+            return true;
+        }
+    }
+}
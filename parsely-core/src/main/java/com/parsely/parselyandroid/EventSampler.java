@@ -0,0 +1,85 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.HashMap;
+import java.util.Map;
+
+/*! \brief Deterministic per-user event sampling, configured per event action.
+ *
+ *  Each user is assigned a fixed position in [0, 1) derived from their UUID. Events for an
+ *  action with sampling rate `r` are kept only for users whose position is below `r`, so a
+ *  given user is either always or never sampled for that action. Sampled events carry the
+ *  rate in `data.sampling_rate` so counts can be reweighted by `1 / sampling_rate`.
+ */
+class EventSampler {
+    private final Map<String, Double> rates = new HashMap<>();
+
+    /*! \brief Set the sampling rate for an action.
+     *
+     * @param action The event action to sample (e.g. heartbeat).
+     * @param rate   Fraction of users to keep events for, between 0 and 1. 1 disables sampling.
+     */
+    synchronized void setRate(String action, double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Sampling rate must be between 0 and 1.");
+        }
+        if (rate == 1) {
+            this.rates.remove(action);
+        } else {
+            this.rates.put(action, rate);
+        }
+    }
+
+    /*! \brief Get the sampling rate for an action.
+     *
+     * @return The configured rate, or 1 if the action is not sampled.
+     */
+    synchronized double getRate(String action) {
+        Double rate = this.rates.get(action);
+        return rate == null ? 1 : rate;
+    }
+
+    /*! \brief Whether events for an action should be kept for a user.
+     *
+     * @param action The event action.
+     * @param uuid   The user's UUID.
+     * @return       Whether the user is inside the sample for this action.
+     */
+    boolean isSampled(String action, String uuid) {
+        double rate = this.getRate(action);
+        if (rate >= 1) {
+            return true;
+        }
+        return samplingPosition(uuid) < rate;
+    }
+
+    /*! \brief Map a UUID to a stable position in [0, 1).
+     *
+     *  Uses 32 bit FNV-1a so the result does not depend on the platform's String hashing.
+     */
+    static double samplingPosition(String uuid) {
+        if (uuid == null) {
+            uuid = "";
+        }
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < uuid.length(); i++) {
+            hash ^= uuid.charAt(i);
+            hash *= 0x01000193;
+        }
+        return (hash & 0xffffffffL) / 4294967296.0;
+    }
+}
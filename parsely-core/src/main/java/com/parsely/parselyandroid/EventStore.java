@@ -0,0 +1,321 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*! \brief Persistent queue of events not yet sent to Parse.ly, safe to share between processes.
+ *
+ *  Each process appends to its own segment file in `directory`: the main process uses
+ *  `fileName` itself, so existing single-process storage is picked up unchanged, and a process
+ *  with suffix `player` (e.g. Android's `com.example:player`) uses `parsely-events-player.ser`.
+ *  Uploaders read every segment and remove what they sent from all of them.
+ *
+ *  Read-modify-write sequences must run between `lock()` and `unlock()`, which serialize
+ *  both the threads of this process and other processes (through a lock file). Stores sharing
+ *  a directory share the lock, and stores in different directories don't contend. Only one
+ *  uploader at a time, across all processes, may hold the lease from `tryAcquireUpload()`.
+ */
+class EventStore {
+    static final String DEFAULT_FILE_NAME = "parsely-events.ser";
+    private static final String SEGMENT_SUFFIX = ".ser";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE_NAME = "parsely-events.lock";
+    private static final String UPLOAD_LOCK_FILE_NAME = "parsely-upload.lock";
+
+    // By canonical lock file path. A JVM can hold a file lock only once, so it is shared by
+    // all stores of a directory.
+    private static final HashMap<String, StorageLock> STORAGE_LOCKS = new HashMap<>();
+
+    /*! \brief Lock of one directory's storage: a lock for the threads of this process, and
+     *  the lock file for other processes, held while the thread lock is.
+     */
+    private static final class StorageLock {
+        final ReentrantLock threadLock = new ReentrantLock();
+        final File file;
+        FileChannel channel;
+        FileLock fileLock;
+
+        StorageLock(File file) {
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final String segmentPrefix, segmentName;
+    private final StorageLock storageLock;
+
+    /*! \brief Open a store.
+     *
+     * @param directory     Private directory holding the segment and lock files.
+     * @param fileName      File name of the main process's segment.
+     * @param processSuffix File name safe identifier of the current process, or null in the
+     *                      main process.
+     */
+    EventStore(File directory, String fileName, String processSuffix) {
+        this.directory = directory;
+        this.segmentPrefix = fileName.endsWith(SEGMENT_SUFFIX)
+                ? fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()) : fileName;
+        this.segmentName = processSuffix == null
+                ? fileName : this.segmentPrefix + "-" + processSuffix + SEGMENT_SUFFIX;
+        this.storageLock = storageLock(new File(directory, LOCK_FILE_NAME));
+    }
+
+    private static StorageLock storageLock(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        synchronized (STORAGE_LOCKS) {
+            StorageLock lock = STORAGE_LOCKS.get(path);
+            if (lock == null) {
+                lock = new StorageLock(new File(path));
+                STORAGE_LOCKS.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    /*! \brief Read the events stored by this process.
+     *
+     * @return The stored events, oldest first. Empty if there are none or they can't be read.
+     */
+    ArrayList<Map<String, Object>> load() {
+        this.lock();
+        try {
+            return this.readSegment(this.segmentName);
+        } finally {
+            this.unlock();
+        }
+    }
+
+    /*! \brief Read the events stored by every process.
+     *
+     * @return The stored events, each segment oldest first.
+     */
+    ArrayList<Map<String, Object>> loadAll() {
+        ArrayList<Map<String, Object>> output = new ArrayList<>();
+        this.lock();
+        try {
+            for (String segment : this.segmentNames()) {
+                output.addAll(this.readSegment(segment));
+            }
+        } finally {
+            this.unlock();
+        }
+        return output;
+    }
+
+    /*! \brief Replace the events stored by this process.
+     *
+     * @param events The events to store, or null to store nothing.
+     */
+    void save(ArrayList<Map<String, Object>> events) {
+        this.lock();
+        try {
+            this.writeSegment(this.segmentName, events);
+        } finally {
+            this.unlock();
+        }
+    }
+
+    /*! \brief Delete all events stored by this process.
+     */
+    void purge() {
+        this.save(null);
+    }
+
+    /*! \brief Delete specific events from every segment, keeping any stored since they were read.
+     *
+     * @param events The events to delete, e.g. those just sent.
+     * @return       The number of events left in storage.
+     */
+    int removeAll(Collection<Map<String, Object>> events) {
+        HashSet<Map<String, Object>> removed = new HashSet<>(events);
+        int remaining = 0;
+        this.lock();
+        try {
+            for (String segment : this.segmentNames()) {
+                ArrayList<Map<String, Object>> storedQueue = this.readSegment(segment);
+                if (storedQueue.removeAll(removed)) {
+                    this.writeSegment(segment, storedQueue.isEmpty() ? null : storedQueue);
+                }
+                remaining += storedQueue.size();
+            }
+        } finally {
+            this.unlock();
+        }
+        return remaining;
+    }
+
+    /*! \brief Take exclusive access to storage, blocking until other threads and processes release it.
+     *
+     *  Reentrant. Every call must be matched by a call to `unlock()`.
+     */
+    void lock() {
+        StorageLock lock = this.storageLock;
+        lock.threadLock.lock();
+        if (lock.threadLock.getHoldCount() > 1) {
+            return;
+        }
+        try {
+            if (lock.channel == null) {
+                lock.channel = new RandomAccessFile(lock.file, "rw").getChannel();
+            }
+            lock.fileLock = lock.channel.lock();
+        } catch (IOException ex) {
+            // Still safe within this process; only other processes may interleave.
+            ParselyLog.w("Couldn't lock event storage: %s", ex);
+        }
+    }
+
+    void unlock() {
+        StorageLock lock = this.storageLock;
+        if (lock.threadLock.getHoldCount() == 1 && lock.fileLock != null) {
+            try {
+                lock.fileLock.release();
+            } catch (IOException ex) {
+                ParselyLog.w("Couldn't unlock event storage: %s", ex);
+            }
+            lock.fileLock = null;
+        }
+        lock.threadLock.unlock();
+    }
+
+    /*! \brief Try to become the only uploader of stored events.
+     *
+     * @return The upload lease, to be passed to `releaseUpload()` once the upload finished, or
+     *         null if another thread or process is uploading.
+     */
+    FileLock tryAcquireUpload() {
+        FileChannel channel = null;
+        FileLock lease = null;
+        try {
+            File file = new File(this.directory, UPLOAD_LOCK_FILE_NAME);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                lease = channel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                // Held by another thread of this process.
+            }
+            return lease;
+        } catch (IOException ex) {
+            ParselyLog.w("Couldn't acquire upload lease: %s", ex);
+            return null;
+        } finally {
+            if (lease == null && channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    ParselyLog.w("Couldn't close upload lock file: %s", ex);
+                }
+            }
+        }
+    }
+
+    /*! \brief Release a lease returned by `tryAcquireUpload()`.
+     *
+     * @param lease The lease. Null is ignored.
+     */
+    static void releaseUpload(FileLock lease) {
+        if (lease == null) {
+            return;
+        }
+        try {
+            lease.release();
+            lease.channel().close();
+        } catch (IOException ex) {
+            ParselyLog.w("Couldn't release upload lease: %s", ex);
+        }
+    }
+
+    private ArrayList<String> segmentNames() {
+        ArrayList<String> output = new ArrayList<>();
+        output.add(this.segmentName);
+        String[] files = this.directory.list();
+        if (files != null) {
+            for (String name : files) {
+                if (name.startsWith(this.segmentPrefix) && name.endsWith(SEGMENT_SUFFIX)
+                        && !name.equals(this.segmentName)) {
+                    output.add(name);
+                }
+            }
+        }
+        return output;
+    }
+
+    private ArrayList<Map<String, Object>> readSegment(String segment) {
+        ArrayList<Map<String, Object>> storedQueue = null;
+        try {
+            FileInputStream fis = new FileInputStream(new File(this.directory, segment));
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            @SuppressWarnings("unchecked")
+            ArrayList<Map<String, Object>> read = (ArrayList<Map<String, Object>>) ois.readObject();
+            storedQueue = read;
+            ois.close();
+        } catch (EOFException ex) {
+            // Nothing to do here.
+        } catch (FileNotFoundException ex) {
+            // Nothing to do here. Means there was no saved queue.
+        } catch (Exception ex) {
+            ParselyLog.w("Exception thrown during queue deserialization: %s", ex);
+        }
+        return storedQueue == null ? new ArrayList<Map<String, Object>>() : storedQueue;
+    }
+
+    /*! \brief Replace a segment by writing a temporary file and renaming it over the segment,
+     *  so a process killed mid-write never leaves a truncated segment behind.
+     */
+    private void writeSegment(String segment, ArrayList<Map<String, Object>> events) {
+        File file = new File(this.directory, segment);
+        File temp = new File(this.directory, segment + TEMP_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            try {
+                oos.writeObject(events);
+            } finally {
+                oos.close();
+            }
+            // Renaming over an existing file fails on some platforms; it doesn't on Android.
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Couldn't rename " + temp + " to " + file);
+            }
+        } catch (Exception ex) {
+            ParselyLog.w("Exception thrown during queue serialization: %s", ex);
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*! \brief The pipeline's most recent operations, with their durations.
+ *
+ *  Obtained from `ParselyTracker.getFlightRecorder()`. Keeps the last `CAPACITY` flushes,
+ *  storage reads and writes, encodings and requests in a ring buffer, so a jank or battery
+ *  report can be matched with what the SDK was doing; `dump()` formats them for a bug report.
+ *
+ *  Every operation is also a trace section named `Parsely:<operation>`, visible in Perfetto
+ *  and systrace captures on Android. On a plain JVM tracing is a no-op.
+ */
+public final class FlightRecorder {
+    /*! Capacity of the ring buffer. */
+    public static final int CAPACITY = 64;
+    /*! Operation: a whole flush. Its event count is the number of events delivered. */
+    public static final String FLUSH = "flush";
+    /*! Operation: reading every process's stored events. */
+    public static final String LOAD_STORED = "load_stored";
+    /*! Operation: writing the queue to storage. */
+    public static final String PERSIST = "persist";
+    /*! Operation: removing delivered events from storage. */
+    public static final String REMOVE_STORED = "remove_stored";
+    /*! Operation: encoding a batch. */
+    public static final String ENCODE = "encode";
+    /*! Operation: a batch request. */
+    public static final String SEND = "send";
+
+    /*! \brief Platform hook emitting trace sections.
+     */
+    interface TraceSink {
+        /*! \brief Open a section on the calling thread. */
+        void beginSection(String name);
+
+        /*! \brief Close the calling thread's most recently opened section. */
+        void endSection();
+    }
+
+    /*! \brief Trace sink discarding sections. The default on a plain JVM.
+     */
+    static final TraceSink NO_TRACE_SINK = new TraceSink() {
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    private static volatile TraceSink traceSink = NO_TRACE_SINK;
+
+    /*! \brief One recorded operation.
+     */
+    public static final class Operation {
+        private final String name;
+        private final String threadName;
+        private final long startTimeMillis;
+        private final long durationMicros;
+        private final int eventCount;
+        private final boolean successful;
+
+        Operation(String name, String threadName, long startTimeMillis, long durationMicros, int eventCount,
+                  boolean successful) {
+            this.name = name;
+            this.threadName = threadName;
+            this.startTimeMillis = startTimeMillis;
+            this.durationMicros = durationMicros;
+            this.eventCount = eventCount;
+            this.successful = successful;
+        }
+
+        /*! \brief One of the operation constants, e.g. `FlightRecorder.PERSIST`. */
+        public String getName() {
+            return this.name;
+        }
+
+        /*! \brief The thread the operation ran on. */
+        public String getThreadName() {
+            return this.threadName;
+        }
+
+        /*! \brief When the operation started, in epoch milliseconds. */
+        public long getStartTimeMillis() {
+            return this.startTimeMillis;
+        }
+
+        public long getDurationMicros() {
+            return this.durationMicros;
+        }
+
+        /*! \brief Number of events the operation handled. */
+        public int getEventCount() {
+            return this.eventCount;
+        }
+
+        public boolean isSuccessful() {
+            return this.successful;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return String.format(Locale.US, "%s %-13s %8dus %5d events %s [%s]",
+                    format.format(new Date(this.startTimeMillis)), this.name, this.durationMicros,
+                    this.eventCount, this.successful ? "ok" : "FAILED", this.threadName);
+        }
+    }
+
+    private final ParselyClock clock;
+    private final Operation[] operations;
+    private int next;
+    private int count;
+
+    FlightRecorder(ParselyClock clock) {
+        this.clock = clock;
+        this.operations = new Operation[CAPACITY];
+    }
+
+    /*! \brief Set the platform's trace sink. `null` restores the no-op sink.
+     */
+    static void setTraceSink(TraceSink sink) {
+        traceSink = sink == null ? NO_TRACE_SINK : sink;
+    }
+
+    /*! \brief Start an operation on the calling thread.
+     *
+     *  Must be matched by `end()` on the same thread, typically in a `finally` block.
+     *
+     * @param name The operation.
+     * @return     The start time to pass to `end()`.
+     */
+    long begin(String name) {
+        traceSink.beginSection("Parsely:" + name);
+        return System.nanoTime();
+    }
+
+    /*! \brief Finish and record an operation.
+     *
+     * @param name       The operation, as passed to `begin()`.
+     * @param startNanos The value `begin()` returned.
+     * @param eventCount Number of events handled.
+     * @param successful Whether the operation succeeded.
+     */
+    void end(String name, long startNanos, int eventCount, boolean successful) {
+        long durationMicros = (System.nanoTime() - startNanos) / 1000;
+        traceSink.endSection();
+        Operation operation = new Operation(name, Thread.currentThread().getName(),
+                this.clock.currentTimeMillis() - durationMicros / 1000, durationMicros, eventCount, successful);
+        synchronized (this) {
+            this.operations[this.next] = operation;
+            this.next = (this.next + 1) % this.operations.length;
+            this.count = Math.min(this.count + 1, this.operations.length);
+        }
+    }
+
+    /*! \brief The recorded operations in the order they finished, so a flush follows its steps.
+     */
+    public synchronized List<Operation> getRecentOperations() {
+        ArrayList<Operation> recent = new ArrayList<>(this.count);
+        int first = (this.next - this.count + this.operations.length) % this.operations.length;
+        for (int i = 0; i < this.count; i++) {
+            recent.add(this.operations[(first + i) % this.operations.length]);
+        }
+        return recent;
+    }
+
+    /*! \brief The recorded operations in the order they finished, one per line.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Operation operation : this.getRecentOperations()) {
+            builder.append(operation).append('\n');
+        }
+        return builder.toString();
+    }
+}
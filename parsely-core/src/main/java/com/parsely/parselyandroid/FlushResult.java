@@ -0,0 +1,129 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*! \brief Outcome of a flush, available once the flush has run.
+ *
+ *  Returned by `ParselyPipeline.flush()` and `ParselyTracker.flushEventQueue()`. Wait for it
+ *  with a timeout from a background thread or a test, or register a callback:
+ *
+ *      tracker.flushEventQueue().addCallback(new FlushResult.Callback() {
+ *          @Override
+ *          public void onComplete(FlushResult result) {
+ *              Log.d("App", result.getSentCount() + " events sent");
+ *          }
+ *      });
+ */
+public final class FlushResult {
+    /*! \brief Notified when a flush completes.
+     */
+    public interface Callback {
+        /*! \brief Called on the pipeline's background thread, or on the registering thread if
+         *  the flush had already completed. Must not block.
+         */
+        void onComplete(FlushResult result);
+    }
+
+    private final CountDownLatch completed;
+    private ArrayList<Callback> callbacks;
+    private volatile int sentCount, failedCount;
+
+    FlushResult() {
+        this.completed = new CountDownLatch(1);
+        this.callbacks = new ArrayList<>();
+    }
+
+    /*! \brief Wait for the flush to complete.
+     *
+     * @param timeoutMillis How long to wait at most.
+     * @return              Whether the flush completed in time.
+     */
+    public boolean await(long timeoutMillis) {
+        try {
+            return this.completed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return this.isDone();
+        }
+    }
+
+    public boolean isDone() {
+        return this.completed.getCount() == 0;
+    }
+
+    /*! \brief Whether the flush completed and every event due was sent (or there were none).
+     */
+    public boolean isSuccessful() {
+        return this.isDone() && this.failedCount == 0;
+    }
+
+    /*! \brief Number of events delivered by the flush. 0 until it completes.
+     */
+    public int getSentCount() {
+        return this.sentCount;
+    }
+
+    /*! \brief Number of queued or stored events the flush didn't deliver, because a request
+     *  failed or there was no network. They are kept and sent by a later flush.
+     */
+    public int getFailedCount() {
+        return this.failedCount;
+    }
+
+    /*! \brief Run a callback when the flush completes, or now if it already has.
+     */
+    public void addCallback(Callback callback) {
+        if (callback == null) {
+            throw new NullPointerException("callback cannot be null.");
+        }
+        synchronized (this) {
+            if (this.callbacks != null) {
+                this.callbacks.add(callback);
+                return;
+            }
+        }
+        this.runCallback(callback);
+    }
+
+    void complete(int sentCount, int failedCount) {
+        ArrayList<Callback> callbacks;
+        synchronized (this) {
+            if (this.callbacks == null) {
+                return;
+            }
+            this.sentCount = sentCount;
+            this.failedCount = failedCount;
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        this.completed.countDown();
+        for (Callback callback : callbacks) {
+            this.runCallback(callback);
+        }
+    }
+
+    private void runCallback(Callback callback) {
+        try {
+            callback.onComplete(this);
+        } catch (RuntimeException ex) {
+            ParselyLog.e("Exception thrown by flush callback", ex);
+        }
+    }
+}
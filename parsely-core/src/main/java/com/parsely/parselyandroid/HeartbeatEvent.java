@@ -0,0 +1,122 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/*! \brief A single heartbeat, backed by its engagement's `HeartbeatTemplate`.
+ *
+ *  Holds only the fields that change per heartbeat. It is a read-only Map so it can sit in
+ *  the event queue next to other events; the full Map is only built if something iterates
+ *  it. Equality and hash code follow the `Map` contract.
+ */
+class HeartbeatEvent extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final HeartbeatTemplate template;
+    private final long ts, inc, tt;
+    private double samplingRate;
+
+    /*! \brief Create a heartbeat.
+     *
+     * @param template The engagement's template.
+     * @param ts       Event timestamp, in epoch seconds.
+     * @param inc      Engaged seconds since the previous heartbeat.
+     * @param tt       Total engaged seconds.
+     */
+    HeartbeatEvent(HeartbeatTemplate template, long ts, long inc, long tt) {
+        this.template = template;
+        this.ts = ts;
+        this.inc = inc;
+        this.tt = tt;
+        this.samplingRate = 1;
+    }
+
+    void setSamplingRate(double samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    HeartbeatTemplate getTemplate() {
+        return this.template;
+    }
+
+    long getTs() {
+        return this.ts;
+    }
+
+    long getInc() {
+        return this.inc;
+    }
+
+    long getTt() {
+        return this.tt;
+    }
+
+    double getSamplingRate() {
+        return this.samplingRate;
+    }
+
+    void writeJson(ByteArrayOutputStream out) {
+        this.writeJson(out, null);
+    }
+
+    void writeJson(ByteArrayOutputStream out, String visitorId) {
+        this.template.write(out, this.ts, this.inc, this.tt, this.samplingRate, visitorId);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if ("inc".equals(key)) {
+            return this.inc;
+        } else if ("tt".equals(key)) {
+            return this.tt;
+        } else if ("data".equals(key)) {
+            return this.toMap().get("data");
+        } else if (key instanceof String) {
+            return this.template.get((String) key);
+        }
+        return null;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return this.toMap().entrySet();
+    }
+
+    Map<String, Object> toMap() {
+        return this.template.toMap(this.ts, this.inc, this.tt, this.samplingRate);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.template.mapHashCode(this.ts, this.inc, this.tt, this.samplingRate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof HeartbeatEvent) {
+            HeartbeatEvent other = (HeartbeatEvent) o;
+            return this.ts == other.ts && this.inc == other.inc && this.tt == other.tt
+                    && this.samplingRate == other.samplingRate
+                    && this.template.hasSameContent(other.template);
+        }
+        return super.equals(o);
+    }
+}
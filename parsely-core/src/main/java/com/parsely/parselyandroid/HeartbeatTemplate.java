@@ -0,0 +1,193 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/*! \brief Pre-encoded invariant part of an engagement's heartbeat events.
+ *
+ *  Everything in a heartbeat except `ts`, `inc` and `tt` (url, urlref, device data, video
+ *  metadata...) stays the same for the whole engagement, so it is encoded to JSON once when
+ *  the engagement starts. Each heartbeat is then a `HeartbeatEvent` holding only the changing
+ *  fields, which are spliced into the template when the batch is encoded.
+ *
+ *  A heartbeat is written as:
+ *
+ *      {"inc":<inc>,"tt":<tt>,"data":{"ts":<ts><dataTail><eventTail>
+ *
+ *  where `dataTail` is the rest of the `data` object (starting with `,` or just `}`) and
+ *  `eventTail` is the rest of the event object. `sampling_rate` and the visitor ID are inserted
+ *  after `ts` when needed. The tails can be dropped under memory pressure
+ *  with `trimMemory()` and are re-encoded on next use; they are not serialized.
+ */
+class HeartbeatTemplate implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final byte[] INC_PREFIX = bytes("{\"inc\":");
+    private static final byte[] TT_PREFIX = bytes(",\"tt\":");
+    private static final byte[] DATA_PREFIX = bytes(",\"data\":{\"ts\":");
+    private static final byte[] SAMPLING_RATE_PREFIX = bytes(",\"sampling_rate\":");
+    private static final byte[] VISITOR_ID_PREFIX = bytes(",\"" + VisitorIdentity.DATA_KEY + "\":");
+
+    private final Map<String, Object> invariantEvent;
+    private final Map<String, Object> invariantData;
+    private transient volatile byte[][] tails;  // {eventTail, dataTail}
+    private final int invariantEventHash, invariantDataHash;
+
+    /*! \brief Encode the invariant part of a heartbeat event.
+     *
+     * @param baseEvent The heartbeat event as built by the tracker. Not modified.
+     */
+    HeartbeatTemplate(Map<String, Object> baseEvent) {
+        this.invariantEvent = new HashMap<>(baseEvent);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = (Map<String, Object>) this.invariantEvent.remove("data");
+        this.invariantEvent.remove("inc");
+        this.invariantEvent.remove("tt");
+        this.invariantData = data == null ? new HashMap<String, Object>() : new HashMap<>(data);
+        this.invariantData.remove("ts");
+        this.invariantData.remove("sampling_rate");
+
+        this.tails = this.encodeTails();
+        this.invariantEventHash = this.invariantEvent.hashCode();
+        this.invariantDataHash = this.invariantData.hashCode();
+    }
+
+    Object get(String key) {
+        return this.invariantEvent.get(key);
+    }
+
+    /*! \brief Write a heartbeat as JSON.
+     *
+     * @param out          Stream to write to.
+     * @param ts           Event timestamp, in epoch seconds.
+     * @param inc          Engaged seconds since the previous heartbeat.
+     * @param tt           Total engaged seconds.
+     * @param samplingRate Sampling rate to report, or 1 if the event isn't sampled.
+     * @param visitorId    Visitor ID to bind, or null. Ignored if the template has one.
+     */
+    void write(ByteArrayOutputStream out, long ts, long inc, long tt, double samplingRate, String visitorId) {
+        out.write(INC_PREFIX, 0, INC_PREFIX.length);
+        JsonWriter.writeLong(out, inc);
+        out.write(TT_PREFIX, 0, TT_PREFIX.length);
+        JsonWriter.writeLong(out, tt);
+        out.write(DATA_PREFIX, 0, DATA_PREFIX.length);
+        JsonWriter.writeLong(out, ts);
+        if (samplingRate < 1) {
+            out.write(SAMPLING_RATE_PREFIX, 0, SAMPLING_RATE_PREFIX.length);
+            JsonWriter.write(out, samplingRate);
+        }
+        if (visitorId != null && !this.invariantData.containsKey(VisitorIdentity.DATA_KEY)) {
+            out.write(VISITOR_ID_PREFIX, 0, VISITOR_ID_PREFIX.length);
+            JsonWriter.writeString(out, visitorId);
+        }
+        byte[][] tails = this.tails;
+        if (tails == null) {
+            tails = this.encodeTails();
+            this.tails = tails;
+        }
+        out.write(tails[1], 0, tails[1].length);
+        out.write(tails[0], 0, tails[0].length);
+    }
+
+    /*! \brief Drop the encoded tails. They are encoded again when the next heartbeat is written.
+     */
+    void trimMemory() {
+        this.tails = null;
+    }
+
+    /*! \brief Build the full event Map for a heartbeat.
+     */
+    Map<String, Object> toMap(long ts, long inc, long tt, double samplingRate) {
+        Map<String, Object> data = new HashMap<>(this.invariantData);
+        data.put("ts", ts);
+        if (samplingRate < 1) {
+            data.put("sampling_rate", samplingRate);
+        }
+        Map<String, Object> event = new HashMap<>(this.invariantEvent);
+        event.put("data", data);
+        event.put("inc", inc);
+        event.put("tt", tt);
+        return event;
+    }
+
+    /*! \brief Hash code of the Map `toMap()` would return, computed without building it.
+     */
+    int mapHashCode(long ts, long inc, long tt, double samplingRate) {
+        int dataHash = this.invariantDataHash + ("ts".hashCode() ^ hashLong(ts));
+        if (samplingRate < 1) {
+            dataHash += "sampling_rate".hashCode() ^ Double.valueOf(samplingRate).hashCode();
+        }
+        return this.invariantEventHash
+                + ("data".hashCode() ^ dataHash)
+                + ("inc".hashCode() ^ hashLong(inc))
+                + ("tt".hashCode() ^ hashLong(tt));
+    }
+
+    /*! \brief Templates are equal when they'd encode the same heartbeats.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HeartbeatTemplate && this.hasSameContent((HeartbeatTemplate) o);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.invariantEventHash + this.invariantDataHash;
+    }
+
+    boolean hasSameContent(HeartbeatTemplate other) {
+        return this == other || (this.invariantEventHash == other.invariantEventHash
+                && this.invariantDataHash == other.invariantDataHash
+                && this.invariantEvent.equals(other.invariantEvent)
+                && this.invariantData.equals(other.invariantData));
+    }
+
+    private byte[][] encodeTails() {
+        return new byte[][]{
+                tail(JsonWriter.toBytes(this.invariantEvent)),
+                tail(JsonWriter.toBytes(this.invariantData))
+        };
+    }
+
+    private static int hashLong(long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    /*! \brief Turn an encoded JSON object into the tail following a leading member.
+     *
+     *  `{}` becomes `}` and `{"a":1}` becomes `,"a":1}`.
+     */
+    static byte[] tail(byte[] object) {
+        if (object.length <= 2) {
+            return new byte[]{'}'};
+        }
+        byte[] output = new byte[object.length];
+        System.arraycopy(object, 1, output, 1, object.length - 1);
+        output[0] = ',';
+        return output;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*! \brief Immutable post metadata, created by `ParselyMetadata.Builder`.
+ *
+ *  The Map form and its JSON encoding are computed once and shared by every event the
+ *  instance is attached to, so content tracked repeatedly should use a single instance.
+ *  Instances are equal if they describe the same content, which is cheap to check through
+ *  the Map form's cached hash code.
+ */
+public class ImmutableParselyMetadata implements EventMetadata {
+    private final List<String> authors, tags;
+    private final String link, section, thumbUrl, title;
+    private final Calendar pubDate;
+    private final PreEncodedMap map;
+
+    ImmutableParselyMetadata(
+            List<String> authors,
+            String link,
+            String section,
+            List<String> tags,
+            String thumbUrl,
+            String title,
+            Calendar pubDate,
+            Integer durationSeconds
+    ) {
+        this.authors = authors == null ? null : Collections.unmodifiableList(new ArrayList<>(authors));
+        this.link = link;
+        this.section = section;
+        this.tags = tags == null ? null : Collections.unmodifiableList(new ArrayList<>(tags));
+        this.thumbUrl = thumbUrl;
+        this.title = title;
+        this.pubDate = pubDate == null ? null : (Calendar) pubDate.clone();
+        Map<String, Object> map = ParselyMetadata.toMap(
+                this.authors, link, section, this.tags, thumbUrl, title, this.pubDate);
+        if (durationSeconds != null) {
+            map.put("duration", durationSeconds);
+        }
+        this.map = new PreEncodedMap(map);
+    }
+
+    /*! \brief The cached, read-only Map form.
+     */
+    public Map<String, Object> toMap() {
+        return this.map;
+    }
+
+    public List<String> getAuthors() {
+        return this.authors;
+    }
+
+    public String getLink() {
+        return this.link;
+    }
+
+    public String getSection() {
+        return this.section;
+    }
+
+    public List<String> getTags() {
+        return this.tags;
+    }
+
+    public String getThumbUrl() {
+        return this.thumbUrl;
+    }
+
+    public String getTitle() {
+        return this.title;
+    }
+
+    /*! \brief The publication date, or null. A copy; changing it doesn't change this instance.
+     */
+    public Calendar getPubDate() {
+        return this.pubDate == null ? null : (Calendar) this.pubDate.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o != null && o.getClass() == this.getClass()
+                && this.map.equals(((ImmutableParselyMetadata) o).map);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.map.hashCode();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.Calendar;
+import java.util.List;
+
+/*! \brief Immutable video metadata, created by `ParselyVideoMetadata.Builder`.
+ */
+public final class ImmutableParselyVideoMetadata extends ImmutableParselyMetadata implements VideoEventMetadata {
+    private final int durationSeconds;
+
+    ImmutableParselyVideoMetadata(
+            List<String> authors,
+            String videoId,
+            String section,
+            List<String> tags,
+            String thumbUrl,
+            String title,
+            Calendar pubDate,
+            int durationSeconds
+    ) {
+        super(authors, videoId, section, tags, thumbUrl, title, pubDate, durationSeconds);
+        this.durationSeconds = durationSeconds;
+    }
+
+    public String getVideoId() {
+        return this.getLink();
+    }
+
+    public int getDurationSeconds() {
+        return this.durationSeconds;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+/*! \brief Minimal JSON encoder for tracker events.
+ *
+ *  Writes UTF-8 JSON straight into a byte buffer. Supports the values events are made of:
+ *  Maps (keys are converted to strings), Collections and arrays, Strings, Numbers, Booleans
+ *  and null. Dates and Calendars are written as epoch milliseconds and any other object as
+ *  the string of its `toString()`. Heartbeats and pre-encoded Maps are spliced in from their
+ *  cached encodings.
+ */
+final class JsonWriter {
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private JsonWriter() {
+    }
+
+    /*! \brief Encode a value as JSON.
+     *
+     * @param value The value to encode.
+     * @return      The UTF-8 encoded JSON.
+     */
+    static byte[] toBytes(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    /*! \brief Write a value as JSON.
+     *
+     * @param out   Buffer to write to.
+     * @param value The value to write.
+     */
+    static void write(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(NULL, 0, NULL.length);
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof HeartbeatEvent) {
+            ((HeartbeatEvent) value).writeJson(out);
+        } else if (value instanceof PreEncodedMap) {
+            byte[] json = ((PreEncodedMap) value).getJson();
+            out.write(json, 0, json.length);
+        } else if (value instanceof Map) {
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            writeLong(out, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                out.write(NULL, 0, NULL.length);
+            } else {
+                writeAscii(out, value.toString());
+            }
+        } else if (value instanceof Number) {
+            writeAscii(out, value.toString());
+        } else if (value instanceof Boolean) {
+            byte[] b = (Boolean) value ? TRUE : FALSE;
+            out.write(b, 0, b.length);
+        } else if (value instanceof Collection) {
+            writeIterator(out, ((Collection<?>) value).iterator());
+        } else if (value.getClass().isArray()) {
+            out.write('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                write(out, Array.get(value, i));
+            }
+            out.write(']');
+        } else if (value instanceof Date) {
+            writeLong(out, ((Date) value).getTime());
+        } else if (value instanceof Calendar) {
+            writeLong(out, ((Calendar) value).getTimeInMillis());
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeMap(ByteArrayOutputStream out, Map<?, ?> map) {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(out, String.valueOf(entry.getKey()));
+            out.write(':');
+            write(out, entry.getValue());
+        }
+        out.write('}');
+    }
+
+    private static void writeIterator(ByteArrayOutputStream out, Iterator<?> iterator) {
+        out.write('[');
+        boolean first = true;
+        while (iterator.hasNext()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            write(out, iterator.next());
+        }
+        out.write(']');
+    }
+
+    /*! \brief Write a quoted, escaped JSON string, encoding it as UTF-8.
+     */
+    static void writeString(ByteArrayOutputStream out, String s) {
+        out.write('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n':
+                        out.write('\\');
+                        out.write('n');
+                        break;
+                    case '\r':
+                        out.write('\\');
+                        out.write('r');
+                        break;
+                    case '\t':
+                        out.write('\\');
+                        out.write('t');
+                        break;
+                    default:
+                        out.write('\\');
+                        out.write('u');
+                        out.write('0');
+                        out.write('0');
+                        out.write(HEX[c >> 4]);
+                        out.write(HEX[c & 0xf]);
+                }
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (codePoint >> 18));
+                out.write(0x80 | ((codePoint >> 12) & 0x3f));
+                out.write(0x80 | ((codePoint >> 6) & 0x3f));
+                out.write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: not representable in UTF-8.
+                out.write('?');
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        out.write('"');
+    }
+
+    /*! \brief Write a long in decimal without allocating a String.
+     */
+    static void writeLong(ByteArrayOutputStream out, long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(out, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        if (value < 10) {
+            out.write((int) ('0' + value));
+            return;
+        }
+        byte[] digits = new byte[19];
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*! \brief An event's `data`: its own fields over shared, read-only defaults.
+ *
+ *  Default dimensions registered once on the tracker (app version, subscriber tier...) are
+ *  referenced by every event instead of being copied into it. They are merged only when the
+ *  Map is iterated, i.e. when the event is encoded. The event's own fields win over the
+ *  defaults, and writes only ever go to its own fields.
+ */
+final class LayeredMap extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Object> defaults;
+    private final HashMap<String, Object> own;
+
+    /*! \brief Create a Map over defaults.
+     *
+     * @param defaults The defaults. Must not change afterwards; may be another LayeredMap.
+     */
+    LayeredMap(Map<String, Object> defaults) {
+        this(defaults, new HashMap<String, Object>());
+    }
+
+    /*! \brief Create a Map over defaults, taking ownership of `own`.
+     */
+    LayeredMap(Map<String, Object> defaults, HashMap<String, Object> own) {
+        this.defaults = defaults == null ? Collections.<String, Object>emptyMap() : defaults;
+        this.own = own;
+    }
+
+    /*! \brief A copy sharing the same defaults, with one of its own fields set.
+     */
+    LayeredMap with(String key, Object value) {
+        HashMap<String, Object> own = new HashMap<>(this.own);
+        own.put(key, value);
+        return new LayeredMap(this.defaults, own);
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = this.own.get(key);
+        if (value != null || this.own.containsKey(key)) {
+            return value;
+        }
+        return this.defaults.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.own.containsKey(key) || this.defaults.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = this.get(key);
+        this.own.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (this.defaults.containsKey(key)) {
+            throw new UnsupportedOperationException("Default dimensions can't be removed from an event.");
+        }
+        return this.own.remove(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new MergingIterator();
+            }
+
+            @Override
+            public int size() {
+                int size = own.size();
+                for (String key : defaults.keySet()) {
+                    if (!own.containsKey(key)) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    /*! \brief Iterates the own fields, then the defaults they don't override.
+     */
+    private final class MergingIterator implements Iterator<Entry<String, Object>> {
+        private final Iterator<Entry<String, Object>> ownEntries = own.entrySet().iterator();
+        private final Iterator<Entry<String, Object>> defaultEntries = defaults.entrySet().iterator();
+        private Entry<String, Object> next;
+
+        @Override
+        public boolean hasNext() {
+            if (this.next != null) {
+                return true;
+            }
+            if (this.ownEntries.hasNext()) {
+                this.next = this.ownEntries.next();
+                return true;
+            }
+            while (this.defaultEntries.hasNext()) {
+                Entry<String, Object> entry = this.defaultEntries.next();
+                if (!own.containsKey(entry.getKey())) {
+                    this.next = entry;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Object> output = this.next;
+            this.next = null;
+            return output;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
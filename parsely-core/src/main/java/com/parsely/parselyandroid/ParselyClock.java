@@ -0,0 +1,109 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+/*! \brief Time source for the tracker and pipeline.
+ *
+ *  Durations (engaged time, heartbeat deadlines, rate limits) are measured on a monotonic
+ *  clock, so changes to the wall clock can't make them negative or huge. Event timestamps
+ *  come from `epochSeconds()`, a plain read of the wall clock that allocates nothing.
+ *
+ *  With server time correction enabled, the clock learns the server's time from the `Date`
+ *  header of each accepted batch. From then on timestamps are the server's time at that
+ *  point plus the monotonic time elapsed since, so a wrong or changed device clock no longer
+ *  shows in `ts`.
+ */
+abstract class ParselyClock {
+    /*! \brief Offsets below this are within `Date`'s one second resolution plus latency. */
+    static final long MIN_CORRECTION_MILLIS = 2000;
+
+    /*! \brief Clock reading `System.nanoTime()` and `System.currentTimeMillis()`.
+     */
+    static final ParselyClock SYSTEM = new ParselyClock() {
+        @Override
+        long elapsedMillis() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private volatile boolean correctionEnabled;
+    private volatile long[] serverAnchor;  // {server epoch millis, elapsedMillis() at that time}
+
+    /*! \brief Monotonic milliseconds since some fixed point. Only differences are meaningful.
+     */
+    abstract long elapsedMillis();
+
+    /*! \brief The device's wall clock, in epoch milliseconds.
+     */
+    abstract long currentTimeMillis();
+
+    /*! \brief The current time in epoch milliseconds, corrected to server time if learned.
+     */
+    final long epochMillis() {
+        long[] anchor = this.serverAnchor;
+        if (anchor != null) {
+            return anchor[0] + (this.elapsedMillis() - anchor[1]);
+        }
+        return this.currentTimeMillis();
+    }
+
+    /*! \brief The current time in epoch seconds, as sent in `ts`.
+     */
+    final long epochSeconds() {
+        return this.epochMillis() / 1000;
+    }
+
+    /*! \brief Turn server time correction on or off. Turning it off forgets the server's time.
+     */
+    void setServerTimeCorrection(boolean enabled) {
+        this.correctionEnabled = enabled;
+        if (!enabled) {
+            this.serverAnchor = null;
+        }
+    }
+
+    boolean isServerTimeCorrectionEnabled() {
+        return this.correctionEnabled;
+    }
+
+    /*! \brief Learn the server's time from a response.
+     *
+     * The server is assumed to have stamped the response halfway through the request.
+     *
+     * @param serverDateMillis The response's `Date`, in epoch milliseconds, or 0 if unknown.
+     * @param sentElapsed      `elapsedMillis()` when the request was sent.
+     * @param receivedElapsed  `elapsedMillis()` when the response was received.
+     */
+    void onServerDate(long serverDateMillis, long sentElapsed, long receivedElapsed) {
+        if (!this.correctionEnabled || serverDateMillis <= 0) {
+            return;
+        }
+        long midpoint = sentElapsed + (receivedElapsed - sentElapsed) / 2;
+        long offset = serverDateMillis - (this.currentTimeMillis() - (receivedElapsed - midpoint));
+        if (Math.abs(offset) < MIN_CORRECTION_MILLIS) {
+            // The device clock is right; keep following it.
+            this.serverAnchor = null;
+            return;
+        }
+        ParselyLog.d("Device clock is off by %dms, correcting timestamps", offset);
+        this.serverAnchor = new long[]{serverDateMillis, midpoint};
+    }
+}
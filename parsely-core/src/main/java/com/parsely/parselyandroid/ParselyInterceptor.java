@@ -0,0 +1,54 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.Map;
+
+/*! \brief Enriches, filters or redacts events before they are queued.
+ *
+ *  Interceptors are registered by name on the tracker (or pipeline) and run in registration
+ *  order on the pipeline's background thread, never on the thread that tracked the event. Each
+ *  one gets a mutable event, nested `data` and metadata included: the first a copy of the
+ *  tracked event, each following one the event the previous one returned, copied if it was
+ *  replaced. Time spent in each is recorded in the `interceptor_time_us.<name>` histogram of
+ *  `ParselyMetrics`.
+ *
+ *  For example, to strip query strings from URLs:
+ *
+ *      tracker.addInterceptor("strip-query", new ParselyInterceptor() {
+ *          @Override
+ *          public Map<String, Object> intercept(Map<String, Object> event) {
+ *              String url = (String) event.get("url");
+ *              if (url != null && url.indexOf('?') >= 0) {
+ *                  event.put("url", url.substring(0, url.indexOf('?')));
+ *              }
+ *              return event;
+ *          }
+ *      });
+ */
+public interface ParselyInterceptor {
+    /*! \brief Inspect or change an event.
+     *
+     *  The event may be modified in place and returned, or replaced by another Map. An
+     *  exception drops the event, in case the interceptor was meant to redact it. Must not
+     *  block: the whole chain shares a per-event budget, see
+     *  `ParselyPipeline.setInterceptorBudgetMicros`.
+     *
+     * @param event The event, as built by the tracker or returned by the previous interceptor.
+     * @return      The event to queue, or null to drop it.
+     */
+    Map<String, Object> intercept(Map<String, Object> event);
+}
@@ -0,0 +1,212 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+
+/*! \brief Level-gated logging for the Parse.ly SDK.
+ *
+ *  Messages below the current level cost a single comparison: the format string is only
+ *  expanded when the message will actually be written, the fixed-arity methods avoid
+ *  allocating a varargs array and the `long` overloads avoid boxing numbers. Arguments that
+ *  are expensive to compute, or numbers mixed with other arguments, should still be guarded
+ *  with `isLoggable()`.
+ *
+ *  Messages go to the platform's default sink unless another `Sink` is set: standard output
+ *  on a plain JVM, `android.util.Log` under the tag `Parsely` once a `ParselyTracker` exists.
+ *  The default level is `WARN`; `ParselyTracker.setDebug(true)` lowers it to `DEBUG`.
+ */
+public final class ParselyLog {
+    // Same values as the android.util.Log constants.
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    /*! Level that disables all logging. */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    public static final String TAG = "Parsely";
+
+    /*! \brief Destination for log messages.
+     */
+    public interface Sink {
+        /*! \brief Write a message.
+         *
+         * @param level   One of the level constants, e.g. `ParselyLog.DEBUG`.
+         * @param message The fully formatted message.
+         * @param error   The exception the message is about, or null.
+         */
+        void log(int level, String message, Throwable error);
+    }
+
+    /*! \brief Sink writing to standard output. The default on a plain JVM.
+     */
+    public static final Sink STDOUT_SINK = new Sink() {
+        @Override
+        public void log(int level, String message, Throwable error) {
+            System.out.println("[" + TAG + "] " + message);
+            if (error != null) {
+                error.printStackTrace(System.out);
+            }
+        }
+    };
+
+    private static volatile int level = WARN;
+    private static volatile Sink defaultSink = STDOUT_SINK;
+    private static volatile Sink sink = STDOUT_SINK;
+
+    private ParselyLog() {
+    }
+
+    /*! \brief Set the minimum level of messages to write.
+     *
+     * @param minLevel One of the level constants, or `NONE` to disable logging.
+     */
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /*! \brief Route log messages somewhere else, e.g. to the host app's logger.
+     *
+     * @param logSink The sink to write to. `null` restores the default.
+     */
+    public static void setSink(Sink logSink) {
+        sink = logSink == null ? defaultSink : logSink;
+    }
+
+    /*! \brief Replace the default sink, keeping any sink set with `setSink()`.
+     *
+     * Called by platform adapters, e.g. to log to `android.util.Log` on Android.
+     */
+    static synchronized void setDefaultSink(Sink platformSink) {
+        if (sink == defaultSink) {
+            sink = platformSink;
+        }
+        defaultSink = platformSink;
+    }
+
+    /*! \brief Whether messages at a level will be written.
+     */
+    public static boolean isLoggable(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static void v(String message) {
+        if (VERBOSE >= level) {
+            write(VERBOSE, message);
+        }
+    }
+
+    public static void v(String format, Object arg) {
+        if (VERBOSE >= level) {
+            write(VERBOSE, String.format(format, arg));
+        }
+    }
+
+    public static void d(String message) {
+        if (DEBUG >= level) {
+            write(DEBUG, message);
+        }
+    }
+
+    public static void d(String format, Object arg) {
+        if (DEBUG >= level) {
+            write(DEBUG, String.format(format, arg));
+        }
+    }
+
+    public static void d(String format, long arg) {
+        if (DEBUG >= level) {
+            write(DEBUG, String.format(format, arg));
+        }
+    }
+
+    public static void d(String format, long arg1, long arg2) {
+        if (DEBUG >= level) {
+            write(DEBUG, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2) {
+        if (DEBUG >= level) {
+            write(DEBUG, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2, Object arg3) {
+        if (DEBUG >= level) {
+            write(DEBUG, String.format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void i(String message) {
+        if (INFO >= level) {
+            write(INFO, message);
+        }
+    }
+
+    public static void i(String format, Object arg) {
+        if (INFO >= level) {
+            write(INFO, String.format(format, arg));
+        }
+    }
+
+    public static void w(String message) {
+        if (WARN >= level) {
+            write(WARN, message);
+        }
+    }
+
+    public static void w(String format, Object arg) {
+        if (WARN >= level) {
+            write(WARN, String.format(format, arg));
+        }
+    }
+
+    public static void w(String format, long arg) {
+        if (WARN >= level) {
+            write(WARN, String.format(format, arg));
+        }
+    }
+
+    public static void w(String format, Object arg1, Object arg2) {
+        if (WARN >= level) {
+            write(WARN, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void e(String message, Throwable error) {
+        if (ERROR >= level) {
+            write(ERROR, message, error);
+        }
+    }
+
+    private static void write(int messageLevel, String message) {
+        write(messageLevel, message, null);
+    }
+
+    private static void write(int messageLevel, String message, Throwable error) {
+        try {
+            sink.log(messageLevel, message, error);
+        } catch (RuntimeException ex) {
+            // A broken sink must never break tracking.
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.parsely.parselyandroid;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*! \brief Represents post metadata to be passed to Parsely tracking.
+ *
+ *  This class is used to attach a metadata block to a Parse.ly pageview
+ *  request. Pageview metadata is only required for URLs not accessible over the
+ *  internet (i.e. app-only content) or if the customer is using an "in-pixel" integration.
+ *  Otherwise, metadata will be gathered by Parse.ly's crawling infrastructure.
+ *
+ *  Its `Builder` creates an `ImmutableParselyMetadata` instead, whose Map and JSON forms are
+ *  computed once and shared by every event it is attached to. Content tracked repeatedly
+ *  should use a single builder-created instance.
+ */
+public class ParselyMetadata implements EventMetadata {
+    public ArrayList<String> authors, tags;
+    public String link, section, thumbUrl, title;
+    public Calendar pubDate;
+
+    /* \brief Create a new ParselyMetadata object.
+     *
+     * @param authors         The names of the authors of the content. Up to 10 authors are accepted.
+     * @param link            A post's canonical url.
+     * @param section         The category or vertical to which this content belongs.
+     * @param tags            User-defined tags for the content. Up to 20 are allowed.
+     * @param thumbUrl        URL at which the main image for this content is located.
+     * @param title           The title of the content.
+     * @param pubDate         The date this piece of content was published.
+     */
+    public ParselyMetadata(
+            @Nullable ArrayList<String> authors,
+            @Nullable String link,
+            @Nullable String section,
+            @Nullable ArrayList<String> tags,
+            @Nullable String thumbUrl,
+            @Nullable String title,
+            @Nullable Calendar pubDate
+    ) {
+        this.authors = authors;
+        this.link = link;
+        this.section = section;
+        this.tags = tags;
+        this.thumbUrl = thumbUrl;
+        this.title = title;
+        this.pubDate = pubDate;
+    }
+
+    /* \brief Turn this object into a Map
+     *
+     * @return a Map object representing the metadata.
+     */
+    public Map<String, Object> toMap() {
+        return toMap(this.authors, this.link, this.section, this.tags, this.thumbUrl, this.title, this.pubDate);
+    }
+
+    /* \brief Build the Map form of metadata values.
+     *
+     * @return a mutable Map object representing the metadata.
+     */
+    static Map<String, Object> toMap(
+            List<String> authors,
+            String link,
+            String section,
+            List<String> tags,
+            String thumbUrl,
+            String title,
+            Calendar pubDate
+    ) {
+        Map<String, Object> output = new HashMap<>();
+        if (authors != null) {
+            output.put("authors", authors);
+        }
+        if (link != null) {
+            output.put("link", link);
+        }
+        if (section != null) {
+            output.put("section", section);
+        }
+        if (tags != null) {
+            output.put("tags", tags);
+        }
+        if (thumbUrl != null) {
+            output.put("thumb_url", thumbUrl);
+        }
+        if (title != null) {
+            output.put("title", title);
+        }
+        if (pubDate != null) {
+            output.put("pub_date_tmsp", pubDate.getTimeInMillis() / 1000);
+        }
+        return output;
+    }
+
+    /* \brief Builder for ImmutableParselyMetadata.
+     *
+     * Every value is optional.
+     */
+    public static class Builder {
+        protected ArrayList<String> authors, tags;
+        protected String link, section, thumbUrl, title;
+        protected Calendar pubDate;
+
+        public Builder authors(@Nullable List<String> authors) {
+            this.authors = authors == null ? null : new ArrayList<>(authors);
+            return this;
+        }
+
+        public Builder link(@Nullable String link) {
+            this.link = link;
+            return this;
+        }
+
+        public Builder section(@Nullable String section) {
+            this.section = section;
+            return this;
+        }
+
+        public Builder tags(@Nullable List<String> tags) {
+            this.tags = tags == null ? null : new ArrayList<>(tags);
+            return this;
+        }
+
+        public Builder thumbUrl(@Nullable String thumbUrl) {
+            this.thumbUrl = thumbUrl;
+            return this;
+        }
+
+        public Builder title(@Nullable String title) {
+            this.title = title;
+            return this;
+        }
+
+        public Builder pubDate(@Nullable Calendar pubDate) {
+            this.pubDate = pubDate == null ? null : (Calendar) pubDate.clone();
+            return this;
+        }
+
+        /* \brief Create an ImmutableParselyMetadata from the values set so far.
+         *
+         * @return a new ImmutableParselyMetadata.
+         */
+        public ImmutableParselyMetadata build() {
+            return new ImmutableParselyMetadata(
+                    this.authors, this.link, this.section, this.tags, this.thumbUrl, this.title, this.pubDate, null);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*! \brief Counters, gauges and histograms describing the tracker's own pipeline.
+ *
+ *  Obtained from `ParselyTracker.getMetrics()`. Values can be read at any time with
+ *  `getCounters()`, `getGauges()` and `getHistograms()`, or forwarded to the host app's own
+ *  monitoring as they are recorded by registering a `Listener`.
+ *
+ *  Per-action metrics are named `<metric>.<action>`, e.g. `events_enqueued.heartbeat`, and
+ *  drops additionally carry the reason: `events_dropped.<reason>.<action>`.
+ */
+public class ParselyMetrics {
+    /*! Counter: events placed in the queue, per action. */
+    public static final String EVENTS_ENQUEUED = "events_enqueued";
+    /*! Counter: events dropped, per reason and action. */
+    public static final String EVENTS_DROPPED = "events_dropped";
+    /*! Drop reason: the user is not in the sample for the action. */
+    public static final String REASON_SAMPLED = "sampled";
+    /*! Drop reason: the action's rate limit was reached. */
+    public static final String REASON_RATE_LIMITED = "rate_limited";
+    /*! Drop reason: expelled from full persistent storage. */
+    public static final String REASON_EVICTED = "evicted";
+    /*! Drop reason: an interceptor returned null. */
+    public static final String REASON_INTERCEPTED = "intercepted";
+    /*! Drop reason: an interceptor threw an exception. */
+    public static final String REASON_INTERCEPTOR_FAILED = "interceptor_failed";
+    /*! Gauge: number of events in the in-memory queue. */
+    public static final String QUEUE_DEPTH = "queue_depth";
+    /*! Gauge: number of events in persistent storage. */
+    public static final String STORAGE_DEPTH = "storage_depth";
+    /*! Histogram: number of events per batch request. */
+    public static final String BATCH_EVENTS = "batch_events";
+    /*! Histogram: size of batch request bodies in bytes. */
+    public static final String BATCH_BYTES = "batch_bytes";
+    /*! Histogram: time spent encoding a batch, in microseconds. */
+    public static final String ENCODE_TIME_MICROS = "encode_time_us";
+    /*! Histogram: duration of batch HTTP requests, in milliseconds. */
+    public static final String HTTP_LATENCY_MILLIS = "http_latency_ms";
+    /*! Counter: successful batch requests. */
+    public static final String FLUSH_SUCCEEDED = "flush_succeeded";
+    /*! Counter: failed batch requests. */
+    public static final String FLUSH_FAILED = "flush_failed";
+    /*! Counter: batch requests resending events after a failed request. */
+    public static final String FLUSH_RETRIES = "flush_retries";
+    /*! Gauge: maximum number of events per batch request, adapted to the network. */
+    public static final String BATCH_SIZE_LIMIT = "batch_size_limit";
+    /*! Histogram: time spent in an interceptor per event, in microseconds, per interceptor. */
+    public static final String INTERCEPTOR_TIME_MICROS = "interceptor_time_us";
+    /*! Counter: events whose interceptors took longer than the budget. */
+    public static final String INTERCEPTOR_OVER_BUDGET = "interceptor_over_budget";
+
+    // Bounds the names kept per metric in case actions come from outside the SDK.
+    private static final int MAX_NAMES_PER_METRIC = 64;
+
+    /*! \brief Receives metrics as they are recorded.
+     *
+     *  Called synchronously on whichever thread recorded the value, including the UI thread,
+     *  so implementations must be fast and must not block. Exceptions they throw are logged
+     *  and otherwise ignored.
+     */
+    public interface Listener {
+        void onCounter(String name, long delta, long total);
+
+        void onGauge(String name, long value);
+
+        void onHistogram(String name, long value);
+    }
+
+    /*! \brief Distribution of recorded values.
+     *
+     *  Values are counted in power-of-two buckets, so percentiles are approximate (within a
+     *  factor of two); count, sum, min and max are exact.
+     */
+    public static class Histogram {
+        private long count, sum, min, max;
+        private final long[] buckets = new long[64];
+
+        Histogram() {
+        }
+
+        Histogram(Histogram other) {
+            this.count = other.count;
+            this.sum = other.sum;
+            this.min = other.min;
+            this.max = other.max;
+            System.arraycopy(other.buckets, 0, this.buckets, 0, this.buckets.length);
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            if (this.count == 0 || value < this.min) {
+                this.min = value;
+            }
+            if (this.count == 0 || value > this.max) {
+                this.max = value;
+            }
+            this.count++;
+            this.sum += value;
+            this.buckets[64 - Long.numberOfLeadingZeros(value)]++;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getSum() {
+            return this.sum;
+        }
+
+        public long getMin() {
+            return this.min;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public double getMean() {
+            return this.count == 0 ? 0 : (double) this.sum / this.count;
+        }
+
+        /*! \brief Approximate percentile.
+         *
+         * @param percentile Percentile between 0 and 100.
+         * @return           Upper bound of the bucket holding the percentile, capped at `max`.
+         */
+        public long getPercentile(double percentile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(this.count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                seen += this.buckets[i];
+                if (seen >= rank && seen > 0) {
+                    long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upperBound, this.max);
+                }
+            }
+            return this.max;
+        }
+    }
+
+    private final Map<String, Long> counters = new HashMap<>();
+    private final Map<String, Long> gauges = new HashMap<>();
+    private final Map<String, Histogram> histograms = new HashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> names = new ConcurrentHashMap<>();
+
+    ParselyMetrics() {
+    }
+
+    /*! \brief The name of a per-action (or per-reason, per-interceptor) metric.
+     *
+     *  Names are built once and reused, so recording them on every event doesn't allocate.
+     *
+     * @param metric    The metric, e.g. `EVENTS_ENQUEUED`.
+     * @param qualifier The action, reason or interceptor name.
+     * @return          `<metric>.<qualifier>`.
+     */
+    String name(String metric, Object qualifier) {
+        ConcurrentHashMap<String, String> byQualifier = this.names.get(metric);
+        if (byQualifier == null) {
+            byQualifier = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, String> existing = this.names.putIfAbsent(metric, byQualifier);
+            if (existing != null) {
+                byQualifier = existing;
+            }
+        }
+        String key = String.valueOf(qualifier);
+        String name = byQualifier.get(key);
+        if (name == null) {
+            name = metric + "." + key;
+            if (byQualifier.size() < MAX_NAMES_PER_METRIC) {
+                byQualifier.putIfAbsent(key, name);
+            }
+        }
+        return name;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    void increment(String name) {
+        this.increment(name, 1);
+    }
+
+    void increment(String name, long delta) {
+        long total;
+        synchronized (this) {
+            Long current = this.counters.get(name);
+            total = (current == null ? 0 : current) + delta;
+            this.counters.put(name, total);
+        }
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onCounter(name, delta, total);
+            } catch (RuntimeException ex) {
+                onListenerFailed(ex);
+            }
+        }
+    }
+
+    void setGauge(String name, long value) {
+        synchronized (this) {
+            this.gauges.put(name, value);
+        }
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onGauge(name, value);
+            } catch (RuntimeException ex) {
+                onListenerFailed(ex);
+            }
+        }
+    }
+
+    void record(String name, long value) {
+        synchronized (this) {
+            Histogram histogram = this.histograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                this.histograms.put(name, histogram);
+            }
+            histogram.record(value);
+        }
+        for (Listener listener : this.listeners) {
+            try {
+                listener.onHistogram(name, value);
+            } catch (RuntimeException ex) {
+                onListenerFailed(ex);
+            }
+        }
+    }
+
+    private static void onListenerFailed(RuntimeException ex) {
+        // Listeners run on the tracking and flush paths; a broken one mustn't abort them.
+        ParselyLog.e("Exception thrown by metrics listener", ex);
+    }
+
+    /*! \brief Get the current value of a counter.
+     *
+     * @return The counter's total, or 0 if it was never incremented.
+     */
+    public synchronized long getCounter(String name) {
+        Long value = this.counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /*! \brief Get a copy of all counters.
+     */
+    public synchronized Map<String, Long> getCounters() {
+        return new HashMap<>(this.counters);
+    }
+
+    /*! \brief Get a copy of all gauges.
+     */
+    public synchronized Map<String, Long> getGauges() {
+        return new HashMap<>(this.gauges);
+    }
+
+    /*! \brief Get a copy of all histograms.
+     */
+    public synchronized Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> output = new HashMap<>();
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+            output.put(entry.getKey(), new Histogram(entry.getValue()));
+        }
+        return output;
+    }
+
+    /*! \brief Forget all recorded values.
+     */
+    public synchronized void reset() {
+        this.counters.clear();
+        this.gauges.clear();
+        this.histograms.clear();
+    }
+}
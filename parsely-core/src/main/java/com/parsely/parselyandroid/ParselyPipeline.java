@@ -0,0 +1,1299 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*! \brief Platform-neutral event pipeline: admission, queueing, storage and upload.
+ *
+ *  Events wait in a `PriorityEventQueue`, spill to an `EventStore` when their priority class
+ *  overflows, and are periodically sent, together with everything stored, as one batch. All
+ *  disk and network work runs in submission order on one background thread.
+ *
+ *  `ParselyTracker` drives a pipeline on Android. On a plain JVM (servers, set-top boxes,
+ *  benchmarks) build one directly and enqueue complete event Maps:
+ *
+ *      ParselyPipeline pipeline = new ParselyPipeline.Builder(new File("/var/lib/parsely")).build();
+ *      if (pipeline.isAdmitted("pageview", visitorId)) {
+ *          pipeline.enqueue(event);
+ *      }
+ */
+public class ParselyPipeline {
+    public static final String DEFAULT_URL = "https://srv.pixel.parsely.com/mobileproxy";
+    private static final byte[] BATCH_PREFIX = "{\"events\":[".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] BATCH_SUFFIX = "]}".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] VISITOR_ID_MEMBER = ("\"" + VisitorIdentity.DATA_KEY + "\":").getBytes(Charset.forName("UTF-8"));
+    static final long DEFAULT_INTERCEPTOR_BUDGET_MICROS = 2000;
+    static final String JSON_CONTENT_TYPE = "application/json";
+
+    /*! \brief Sends encoded batches to Parse.ly.
+     */
+    public interface Transport {
+        /*! \brief Send one batch, blocking until the server accepted it.
+         *
+         * @param url         The URL to send to.
+         * @param contentType The body's content type: `application/json` or
+         *                    `ColumnarBatchFormat.CONTENT_TYPE`.
+         * @param body        The encoded body.
+         * @return            The response's `Date` in epoch milliseconds, or 0 if unknown.
+         * @throws UnsupportedMediaTypeException If the server doesn't accept the content type.
+         *                                       The batch is resent as JSON.
+         * @throws IOException If the batch wasn't accepted. Its events are kept and retried.
+         */
+        long send(String url, String contentType, byte[] body) throws IOException;
+    }
+
+    /*! \brief Transport POSTing batches with `HttpURLConnection`. The default.
+     */
+    public static final Transport HTTP_TRANSPORT = new Transport() {
+        @Override
+        public long send(String url, String contentType, byte[] body) throws IOException {
+            HttpURLConnection connection = post(url, contentType, body);
+            long date = connection.getDate();
+            connection.disconnect();
+            return date;
+        }
+    };
+
+    /*! \brief Hooks for the platform adapter embedding the pipeline.
+     */
+    interface Host {
+        /*! \brief Whether it's worth trying to send now. */
+        boolean isNetworkAvailable();
+
+        /*! \brief Called on the pipeline thread when a flush was skipped for lack of network. */
+        void onNetworkUnavailable();
+
+        /*! \brief Called on the pipeline thread after events were written to storage. */
+        void onEventsStored(int storedCount);
+    }
+
+    private static final Host HEADLESS_HOST = new Host() {
+        @Override
+        public boolean isNetworkAvailable() {
+            return true;
+        }
+
+        @Override
+        public void onNetworkUnavailable() {
+        }
+
+        @Override
+        public void onEventsStored(int storedCount) {
+        }
+    };
+
+    private final PriorityEventQueue queue;
+    private final EventStore store;
+    private final EventSampler sampler;
+    private final EventRateLimiter rateLimiter;
+    private final ParselyMetrics metrics;
+    private final FlightRecorder recorder;
+    private final Transport transport;
+    private final ParselyClock clock;
+    private final String url;
+    private final int storageSizeLimit;
+    private final long flushIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final ExecutorService sendExecutor;
+    private final BatchSizer batchSizer;
+    private ScheduledFuture<?> flushTask;
+    private volatile Host host;
+    private volatile VisitorIdentity identity;
+    private final CopyOnWriteArrayList<NamedInterceptor> interceptors;
+    private volatile long interceptorBudgetMicros;
+    private volatile boolean dryRun, lastFlushFailed;
+    private volatile boolean compactWireFormat, compactWireFormatRejected;
+    private volatile int knownStoredCount;
+
+    private ParselyPipeline(Builder builder) {
+        this.queue = new PriorityEventQueue(builder.queueSizeLimit, builder.queueSizeLimit);
+        this.store = new EventStore(builder.storageDirectory, builder.storageFileName, builder.processSuffix);
+        this.sampler = new EventSampler();
+        this.rateLimiter = new EventRateLimiter();
+        this.metrics = new ParselyMetrics();
+        this.transport = builder.transport;
+        this.clock = builder.clock;
+        this.recorder = new FlightRecorder(this.clock);
+        this.url = builder.url;
+        this.storageSizeLimit = builder.storageSizeLimit;
+        this.flushIntervalMillis = builder.flushIntervalMillis;
+        // Unlike java.util.Timer, measures delays with System.nanoTime(), so setting the wall
+        // clock back doesn't stall flushes and heartbeats.
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParselyTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler = scheduler;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParselyPipeline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Extra threads for batches sent in parallel with the pipeline thread's own.
+        this.sendExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParselySender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.batchSizer = new BatchSizer(builder.targetRequestMillis);
+        this.host = HEADLESS_HOST;
+        this.interceptors = new CopyOnWriteArrayList<>();
+        this.interceptorBudgetMicros = DEFAULT_INTERCEPTOR_BUDGET_MICROS;
+    }
+
+    /*! \brief Check sampling and rate limits for an event about to be built.
+     *
+     *  Drops are counted in the metrics.
+     *
+     *  @param action    The action of the event.
+     *  @param visitorId Stable identifier of the visitor, deciding whether they are sampled, or
+     *                   null if it isn't resolved yet. Sampling is then decided when the event
+     *                   is flushed, see `setIdentity`.
+     *  @return          Whether the event should be enqueued.
+     */
+    public boolean isAdmitted(String action, String visitorId) {
+        if (!this.isSampled(action, visitorId)) {
+            ParselyLog.d("User not sampled for %s events. Dropping event.", action);
+            this.recordDrop(ParselyMetrics.REASON_SAMPLED, action);
+            return false;
+        }
+        if (!this.rateLimiter.tryAcquire(action, this.clock.elapsedMillis())) {
+            ParselyLog.d("Rate limit reached for %s events. Dropping event.", action);
+            this.recordDrop(ParselyMetrics.REASON_RATE_LIMITED, action);
+            return false;
+        }
+        return true;
+    }
+
+    /*! \brief Add an event to the queue.
+     *
+     *  Each priority class (see `EventPriority`) has its own queue bounded by the queue size
+     *  limit; the oldest events of an overflowing class move to storage. Events are discarded
+     *  when storage exceeds its limit, LOW priority ones first. Starts the flush timer.
+     *
+     *  If interceptors are registered, the event is queued once they have run, in the
+     *  background.
+     *
+     *  @param event The complete event Map, e.g. with `action`, `url`, `idsite` and `data`.
+     */
+    public void enqueue(Map<String, Object> event) {
+        final Map<String, Object> stamped = this.stampSamplingRate(event);
+        if (this.interceptors.isEmpty()) {
+            this.addToQueue(stamped);
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    spillOverflow();
+                }
+            });
+        } else {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queueIntercepted(stamped);
+                }
+            });
+        }
+        this.ensureFlushTimer();
+    }
+
+    /*! \brief Like `enqueue`, but runs the interceptors right away.
+     *
+     *  Only call on the pipeline thread: the event is queued before any work submitted later,
+     *  such as a flush.
+     */
+    void enqueueOnPipelineThread(Map<String, Object> event) {
+        Map<String, Object> stamped = this.stampSamplingRate(event);
+        if (this.interceptors.isEmpty()) {
+            this.addToQueue(stamped);
+            this.spillOverflow();
+        } else {
+            this.queueIntercepted(stamped);
+        }
+        this.ensureFlushTimer();
+    }
+
+    private void queueIntercepted(Map<String, Object> event) {
+        Map<String, Object> intercepted = this.intercept(event);
+        if (intercepted != null) {
+            this.addToQueue(intercepted);
+            this.spillOverflow();
+        }
+    }
+
+    private void ensureFlushTimer() {
+        if (!this.flushTimerIsActive()) {
+            this.startFlushTimer();
+            ParselyLog.d("Flush timer set to %ds", this.flushIntervalMillis / 1000);
+        }
+    }
+
+    /*! \brief Register an interceptor, to run after those already registered.
+     *
+     *  Replaces any interceptor registered under the same name, in its place.
+     *
+     *  @param name        Name of the interceptor, used in metrics.
+     *  @param interceptor The interceptor.
+     */
+    public void addInterceptor(String name, ParselyInterceptor interceptor) {
+        if (name == null || interceptor == null) {
+            throw new NullPointerException("name and interceptor cannot be null.");
+        }
+        synchronized (this.interceptors) {
+            NamedInterceptor named = new NamedInterceptor(name, interceptor);
+            for (int i = 0; i < this.interceptors.size(); i++) {
+                if (this.interceptors.get(i).name.equals(name)) {
+                    this.interceptors.set(i, named);
+                    return;
+                }
+            }
+            this.interceptors.add(named);
+        }
+    }
+
+    /*! \brief Unregister an interceptor. Does nothing if none has that name.
+     *
+     *  @param name Name the interceptor was registered with.
+     */
+    public void removeInterceptor(String name) {
+        synchronized (this.interceptors) {
+            for (NamedInterceptor named : this.interceptors) {
+                if (named.name.equals(name)) {
+                    this.interceptors.remove(named);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*! \brief Set how long the interceptor chain may take per event.
+     *
+     *  Events taking longer are still queued, since skipping an interceptor could leak data it
+     *  is meant to redact, but are counted in `interceptor_over_budget` and logged as warnings.
+     *  Defaults to 2ms.
+     *
+     *  @param budgetMicros The budget, in microseconds.
+     */
+    public void setInterceptorBudgetMicros(long budgetMicros) {
+        if (budgetMicros <= 0) {
+            throw new IllegalArgumentException("budgetMicros must be positive.");
+        }
+        this.interceptorBudgetMicros = budgetMicros;
+    }
+
+    /*! \brief Send everything queued and stored now, in the background.
+     *
+     *  @return The flush's outcome, once it has run.
+     */
+    public FlushResult flush() {
+        final FlushResult result = new FlushResult();
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                doFlush(result);
+            }
+        });
+        return result;
+    }
+
+    /*! \brief Send everything queued and stored, waiting at most `timeoutMillis`.
+     *
+     *  For process exit and tests. Stops the flush timer and flushes after any work already
+     *  submitted. If the flush fails, the queue is then written to storage on the pipeline
+     *  thread so a later launch (or deferred delivery) sends it. The pipeline stays usable;
+     *  events enqueued afterwards restart the flush timer.
+     *
+     *  @param timeoutMillis How long to wait for the flush and the write at most. Don't block
+     *                       the main thread for long.
+     *  @return              The flush's outcome, which may not be complete yet.
+     */
+    public FlushResult drain(long timeoutMillis) {
+        this.stopFlushTimer();
+        final FlushResult result = this.flush();
+        final CountDownLatch drained = new CountDownLatch(1);
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!result.isSuccessful() && queue.size() > 0) {
+                        ParselyLog.d("Flush failed. Storing the queue.");
+                        persistQueue();
+                    }
+                } finally {
+                    drained.countDown();
+                }
+            }
+        });
+        try {
+            if (!drained.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                ParselyLog.w("Drain didn't finish within %dms.", timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /*! \brief Move every queued event to storage, in the background.
+     *
+     *  Frees the memory held by the queue; the next flush reads the events back.
+     */
+    public void spill() {
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Map<String, Object>> spilled = queue.snapshot();
+                if (spilled.size() > 0) {
+                    persistQueue();
+                    queue.removeAll(spilled);
+                    queue.trimToSize();
+                    metrics.setGauge(ParselyMetrics.QUEUE_DEPTH, queue.size());
+                } else {
+                    int storedCount = storedEventsCount();
+                    if (storedCount > 0) {
+                        host.onEventsStored(storedCount);
+                    }
+                }
+            }
+        });
+    }
+
+    /*! \brief Don't send anything; drop batches as if they had been delivered.
+     *
+     *  @param dryRun Whether to drop batches instead of sending them.
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /*! \brief Send batches in the compact `ColumnarBatchFormat` if the server accepts it.
+     *
+     *  Once the server answers `415 Unsupported Media Type` the pipeline falls back to JSON,
+     *  resending that batch right away, and sticks to it until compact batches are enabled
+     *  again. Off by default.
+     *
+     *  @param enabled Whether to offer compact batches.
+     */
+    public void setCompactWireFormat(boolean enabled) {
+        this.compactWireFormat = enabled;
+        this.compactWireFormatRejected = false;
+    }
+
+    public boolean isCompactWireFormat() {
+        return this.compactWireFormat;
+    }
+
+    /*! \brief Correct event timestamps for a wrong device clock using the server's time.
+     *
+     *  See `ParselyClock`. Off by default.
+     */
+    public void setServerTimeCorrection(boolean enabled) {
+        this.clock.setServerTimeCorrection(enabled);
+    }
+
+    public boolean isDryRun() {
+        return this.dryRun;
+    }
+
+    /*! \brief Sample events for an action by visitor. See `ParselyTracker.setSamplingRate`.
+     */
+    public void setSamplingRate(String action, double rate) {
+        this.sampler.setRate(action, rate);
+    }
+
+    /*! \brief Limit the rate at which events for an action are admitted. See `ParselyTracker.setRateLimit`.
+     */
+    public void setRateLimit(String action, double eventsPerMinute, int burst) {
+        this.rateLimiter.setLimit(action, eventsPerMinute, burst);
+    }
+
+    public void clearRateLimit(String action) {
+        this.rateLimiter.removeLimit(action);
+    }
+
+    public ParselyMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /*! \brief The pipeline's recent operations and their durations. See `FlightRecorder`.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return this.recorder;
+    }
+
+    /*! \brief Number of events waiting in memory.
+     */
+    public int queueSize() {
+        return this.queue.size();
+    }
+
+    /*! \brief Number of events in storage, across all processes sharing the storage directory.
+     *
+     *  Reads every stored file; call `knownStoredEventsCount()` on threads that can't block.
+     */
+    public int storedEventsCount() {
+        int storedCount = this.store.loadAll().size();
+        this.setStoredCount(storedCount);
+        return storedCount;
+    }
+
+    /*! \brief Number of events in storage when this process last read or wrote it.
+     *
+     *  Doesn't touch storage. Events stored since by other processes are not counted.
+     */
+    public int knownStoredEventsCount() {
+        return this.knownStoredCount;
+    }
+
+    /*! \brief Delete the events this process stored.
+     */
+    public void purgeStoredEvents() {
+        this.store.purge();
+        this.setStoredCount(0);
+    }
+
+    private void setStoredCount(int storedCount) {
+        this.knownStoredCount = storedCount;
+        this.metrics.setGauge(ParselyMetrics.STORAGE_DEPTH, storedCount);
+    }
+
+    public synchronized void startFlushTimer() {
+        if (this.flushTask != null) {
+            return;
+        }
+        this.flushTask = this.scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean flushTimerIsActive() {
+        return this.flushTask != null;
+    }
+
+    public synchronized void stopFlushTimer() {
+        if (this.flushTask != null) {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+    }
+
+    public long getFlushIntervalMillis() {
+        return this.flushIntervalMillis;
+    }
+
+    /*! \brief Release spare queue capacity under memory pressure.
+     */
+    void trimMemory() {
+        this.queue.trimToSize();
+    }
+
+    void setHost(Host host) {
+        this.host = host == null ? HEADLESS_HOST : host;
+    }
+
+    /*! \brief Bind this identity's visitor ID to events when they are encoded.
+     *
+     *  Flushes are skipped until the ID is resolved, without waiting for it, and drop the events
+     *  whose visitor isn't sampled for the resolved ID.
+     */
+    void setIdentity(VisitorIdentity identity) {
+        this.identity = identity;
+    }
+
+    /*! \brief Whether a visitor is sampled for an action.
+     *
+     *  @param visitorId The visitor ID, or null if it isn't resolved yet, in which case the
+     *                   event is kept until the flush decides.
+     */
+    boolean isSampled(String action, String visitorId) {
+        return visitorId == null || this.sampler.isSampled(action, visitorId);
+    }
+
+    EventSampler getSampler() {
+        return this.sampler;
+    }
+
+    EventRateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    EventStore getStore() {
+        return this.store;
+    }
+
+    ParselyClock getClock() {
+        return this.clock;
+    }
+
+    /*! \brief The pipeline's timer thread, shared with the platform adapter's timers.
+     */
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /*! \brief The pipeline thread, for the platform adapter's storage work.
+     */
+    ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    void recordDrop(String reason, Object action) {
+        this.metrics.increment(this.metrics.name(this.metrics.name(ParselyMetrics.EVENTS_DROPPED, reason), action));
+    }
+
+    /*! \brief Record the outcome of a batch request.
+     *
+     * @param succeeded     Whether the request succeeded.
+     * @param latencyMillis How long the request took.
+     */
+    void onBatchRequestFinished(boolean succeeded, long latencyMillis) {
+        this.lastFlushFailed = !succeeded;
+        this.metrics.record(ParselyMetrics.HTTP_LATENCY_MILLIS, latencyMillis);
+        this.metrics.increment(succeeded ? ParselyMetrics.FLUSH_SUCCEEDED : ParselyMetrics.FLUSH_FAILED);
+    }
+
+    /*! \brief Record the sampling rate in an event whose action is sampled.
+     *
+     *  @param event The event Map. Its `data` Map is copied, never modified.
+     *  @return      The event, with `data.sampling_rate` set if its action is sampled.
+     */
+    private Map<String, Object> stampSamplingRate(Map<String, Object> event) {
+        double rate = this.sampler.getRate((String) event.get("action"));
+        if (rate < 1 && event instanceof HeartbeatEvent) {
+            ((HeartbeatEvent) event).setSamplingRate(rate);
+        } else if (rate < 1) {
+            Object data = event.get("data");
+            if (data instanceof LayeredMap) {
+                event.put("data", ((LayeredMap) data).with("sampling_rate", rate));
+            } else {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> copy = new HashMap<>((Map<String, Object>) data);
+                copy.put("sampling_rate", rate);
+                event.put("data", copy);
+            }
+        }
+        return event;
+    }
+
+    private void addToQueue(Map<String, Object> event) {
+        this.queue.add(event);
+        this.metrics.increment(this.metrics.name(ParselyMetrics.EVENTS_ENQUEUED, event.get("action")));
+        this.metrics.setGauge(ParselyMetrics.QUEUE_DEPTH, this.queue.size());
+    }
+
+    /*! \brief Run an event through the interceptors. Runs on the pipeline thread.
+     *
+     * The chain works on a mutable copy of the event, nested maps and lists included; an event
+     * returned in place of the one passed in is copied again before the next interceptor, so
+     * each one can change what it gets. If the interceptors leave it unchanged the original is queued, keeping its compact form; a
+     * changed heartbeat is turned back into one.
+     *
+     * @return The event to queue, or null if it was dropped.
+     */
+    private Map<String, Object> intercept(Map<String, Object> original) {
+        Object action = original.get("action");
+        Map<String, Object> event = mutableCopy(original);
+        long totalMicros = 0;
+        for (NamedInterceptor named : this.interceptors) {
+            long startNanos = System.nanoTime();
+            Map<String, Object> input = event;
+            try {
+                event = named.interceptor.intercept(input);
+            } catch (RuntimeException ex) {
+                // Fail closed: the interceptor may have been meant to redact this event.
+                ParselyLog.e("Exception thrown by interceptor " + named.name + ", dropping event", ex);
+                this.recordDrop(ParselyMetrics.REASON_INTERCEPTOR_FAILED, action);
+                return null;
+            }
+            long micros = (System.nanoTime() - startNanos) / 1000;
+            totalMicros += micros;
+            this.metrics.record(this.metrics.name(ParselyMetrics.INTERCEPTOR_TIME_MICROS, named.name), micros);
+            if (event == null) {
+                ParselyLog.d("Interceptor %s dropped a %s event", named.name, action);
+                this.recordDrop(ParselyMetrics.REASON_INTERCEPTED, action);
+                return null;
+            }
+            if (event != input) {
+                event = mutableCopy(event);
+            }
+        }
+        if (totalMicros > this.interceptorBudgetMicros) {
+            if (ParselyLog.isLoggable(ParselyLog.WARN)) {
+                ParselyLog.w("Interceptors took %dus for a %s event, over budget", totalMicros, action);
+            }
+            this.metrics.increment(ParselyMetrics.INTERCEPTOR_OVER_BUDGET);
+        }
+        if (event.equals(original)) {
+            return original;
+        }
+        if (original instanceof HeartbeatEvent) {
+            return toHeartbeat(event);
+        }
+        return event;
+    }
+
+    /*! \brief Copy an event into plain HashMaps and ArrayLists, all the way down.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> mutableCopy(Map<String, Object> event) {
+        return (Map<String, Object>) mutableValue(event);
+    }
+
+    private static Object mutableValue(Object value) {
+        if (value instanceof Map) {
+            HashMap<Object, Object> copy = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), mutableValue(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            ArrayList<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object item : (List<?>) value) {
+                copy.add(mutableValue(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /*! \brief Template a changed heartbeat again, or leave it a plain Map if it no longer has
+     *  a heartbeat's numeric `inc`, `tt` and `data.ts`.
+     */
+    private static Map<String, Object> toHeartbeat(Map<String, Object> event) {
+        Object data = event.get("data");
+        Object ts = data instanceof Map ? ((Map<?, ?>) data).get("ts") : null;
+        Object inc = event.get("inc");
+        Object tt = event.get("tt");
+        if (!(ts instanceof Long && inc instanceof Long && tt instanceof Long)) {
+            return event;
+        }
+        HeartbeatEvent heartbeat = new HeartbeatEvent(new HeartbeatTemplate(event), (Long) ts, (Long) inc, (Long) tt);
+        Object samplingRate = ((Map<?, ?>) data).get("sampling_rate");
+        if (samplingRate instanceof Number) {
+            heartbeat.setSamplingRate(((Number) samplingRate).doubleValue());
+        }
+        return heartbeat;
+    }
+
+    /*! \brief If a priority class is over its limit, move its oldest event to storage.
+     */
+    private void spillOverflow() {
+        EventPriority overflowing = this.queue.overflowingPriority();
+        if (overflowing != null) {
+            ParselyLog.d("%s priority queue size exceeded, expelling oldest event to persistent memory", overflowing);
+            // persistQueue also expels stored events beyond storageSizeLimit
+            this.persistQueue();
+            this.queue.removeOldest(overflowing);
+        }
+    }
+
+    /*! \brief Save the event queue to persistent storage.
+     */
+    private void persistQueue() {
+        ParselyLog.d("Persisting event queue");
+        int storedCount = 0;
+        boolean persisted = false;
+        long startNanos = this.recorder.begin(FlightRecorder.PERSIST);
+        this.store.lock();
+        try {
+            ArrayList<Map<String, Object>> storedQueue = this.store.load();
+            LinkedHashSet<Map<String, Object>> hs = new LinkedHashSet<>();
+            hs.addAll(storedQueue);
+            hs.addAll(this.queue.snapshot());
+            storedQueue.clear();
+            storedQueue.addAll(hs);
+            this.expelStoredEvents(storedQueue);
+            this.store.save(storedQueue);
+            storedCount = storedQueue.size();
+            persisted = true;
+        } finally {
+            this.store.unlock();
+            this.recorder.end(FlightRecorder.PERSIST, startNanos, storedCount, persisted);
+        }
+        this.setStoredCount(storedCount);
+        this.host.onEventsStored(storedCount);
+    }
+
+    /*! \brief Delete events from the stored queue until it fits in the storage size limit.
+     *
+     * The oldest LOW priority events are expelled first so that heartbeats never push
+     * pageviews out of storage.
+     *
+     * @param storedQueue The stored queue to trim, oldest first.
+     */
+    private void expelStoredEvents(ArrayList<Map<String, Object>> storedQueue) {
+        while (storedQueue.size() > this.storageSizeLimit) {
+            Map<String, Object> expelled = storedQueue.remove(PriorityEventQueue.evictionIndex(storedQueue));
+            ParselyLog.d("Stored queue size exceeded, expelling %s event", expelled.get("action"));
+            this.recordDrop(ParselyMetrics.REASON_EVICTED, expelled.get("action"));
+        }
+    }
+
+    /*! \brief Flush on the pipeline thread, completing `result` whatever happens.
+     */
+    private void doFlush(FlushResult result) {
+        int dueCount = 0;
+        int sentCount = 0;
+        long startNanos = this.recorder.begin(FlightRecorder.FLUSH);
+        try {
+            ArrayList<Map<String, Object>> storedQueue = this.loadStored();
+            dueCount = this.queue.size() + storedQueue.size();
+            sentCount = this.doFlush(storedQueue);
+        } finally {
+            this.recorder.end(FlightRecorder.FLUSH, startNanos, sentCount, sentCount >= dueCount);
+            result.complete(sentCount, Math.max(0, dueCount - sentCount));
+        }
+    }
+
+    /*! \brief Flush, given the current stored events.
+     *
+     *  @return The number of events delivered.
+     */
+    private int doFlush(ArrayList<Map<String, Object>> storedQueue) {
+        this.setStoredCount(storedQueue.size());
+        ParselyLog.d("%d events in queue, %d stored events", this.queue.size(), storedQueue.size());
+        if (this.queue.size() == 0 && storedQueue.size() == 0) {
+            this.stopFlushTimer();
+            return 0;
+        }
+        if (!this.host.isNetworkAvailable()) {
+            ParselyLog.d("Network unreachable. Not flushing.");
+            this.host.onNetworkUnavailable();
+            return 0;
+        }
+        String visitorId = null;
+        VisitorIdentity identity = this.identity;
+        if (identity != null) {
+            visitorId = identity.getResolvedId();
+            if (visitorId == null) {
+                ParselyLog.d("Visitor ID not resolved yet. Not flushing.");
+                return 0;
+            }
+        }
+        // Another process (or an upload job) is sending stored events; try again next time.
+        FileLock uploadLease = this.store.tryAcquireUpload();
+        if (uploadLease == null) {
+            ParselyLog.d("Upload in progress elsewhere. Not flushing.");
+            return 0;
+        }
+        try {
+            // Re-read now that no one else can be removing sent events.
+            LinkedHashSet<Map<String, Object>> hs = new LinkedHashSet<>();
+            hs.addAll(this.queue.snapshot());
+            hs.addAll(this.loadStored());
+            ParselyLog.d("Flushing queue");
+            ArrayList<Map<String, Object>> events = new ArrayList<>(hs);
+            if (visitorId != null) {
+                this.dropUnsampled(events, visitorId);
+            }
+            // HIGH priority events go first so they are the first to be delivered
+            return this.sendBatches(PriorityEventQueue.orderByPriority(events), visitorId);
+        } finally {
+            EventStore.releaseUpload(uploadLease);
+        }
+    }
+
+    /*! \brief Drop the events tracked before the visitor ID was resolved whose visitor isn't
+     *  sampled for it, from the list, the queue and storage.
+     *
+     *  Uses the sampling rate stamped into each event when it was enqueued, so a pipeline
+     *  sending another's stored events (e.g. from an upload job) samples them the same way.
+     */
+    private void dropUnsampled(ArrayList<Map<String, Object>> events, String visitorId) {
+        ArrayList<Map<String, Object>> unsampled = new ArrayList<>();
+        double position = EventSampler.samplingPosition(visitorId);
+        for (Iterator<Map<String, Object>> it = events.iterator(); it.hasNext(); ) {
+            Map<String, Object> event = it.next();
+            Object action = event.get("action");
+            if (position >= stampedSamplingRate(event)) {
+                it.remove();
+                unsampled.add(event);
+                this.recordDrop(ParselyMetrics.REASON_SAMPLED, action);
+            }
+        }
+        if (!unsampled.isEmpty()) {
+            ParselyLog.d("User not sampled for %d events tracked before the visitor ID was resolved.", unsampled.size());
+            this.onBatchDelivered(unsampled);
+        }
+    }
+
+    private static double stampedSamplingRate(Map<String, Object> event) {
+        if (event instanceof HeartbeatEvent) {
+            return ((HeartbeatEvent) event).getSamplingRate();
+        }
+        Object data = event.get("data");
+        Object rate = data instanceof Map ? ((Map<?, ?>) data).get("sampling_rate") : null;
+        return rate instanceof Number ? ((Number) rate).doubleValue() : 1;
+    }
+
+    /*! \brief Read every process's stored events, recording the read.
+     */
+    private ArrayList<Map<String, Object>> loadStored() {
+        ArrayList<Map<String, Object>> storedQueue = null;
+        long startNanos = this.recorder.begin(FlightRecorder.LOAD_STORED);
+        try {
+            storedQueue = this.store.loadAll();
+            return storedQueue;
+        } finally {
+            this.recorder.end(FlightRecorder.LOAD_STORED, startNanos,
+                    storedQueue == null ? 0 : storedQueue.size(), storedQueue != null);
+        }
+    }
+
+    /*! \brief Send events in batches sized for the current network, see `BatchSizer`.
+     *
+     *  Batches go out in rounds of one or more parallel requests. Stops at the first round
+     *  with a failed request, keeping the rest for the next flush.
+     *
+     *  @return The number of events delivered.
+     */
+    private int sendBatches(ArrayList<Map<String, Object>> events, final String visitorId) {
+        int sentCount = 0;
+        int start = 0;
+        while (start < events.size()) {
+            int batchEvents = this.batchSizer.getBatchEvents();
+            int parallelism = this.batchSizer.getParallelism();
+            this.metrics.setGauge(ParselyMetrics.BATCH_SIZE_LIMIT, batchEvents);
+
+            ArrayList<ArrayList<Map<String, Object>>> round = new ArrayList<>();
+            for (int i = 0; i < parallelism && start < events.size(); i++) {
+                int end = Math.min(events.size(), start + batchEvents);
+                round.add(new ArrayList<>(events.subList(start, end)));
+                start = end;
+            }
+
+            ArrayList<Future<Boolean>> others = new ArrayList<>();
+            for (final ArrayList<Map<String, Object>> batch : round.subList(1, round.size())) {
+                others.add(this.sendExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return sendBatch(batch, visitorId);
+                    }
+                }));
+            }
+            boolean roundSucceeded = true;
+            if (this.sendBatch(round.get(0), visitorId)) {
+                sentCount += round.get(0).size();
+            } else {
+                roundSucceeded = false;
+            }
+            for (int i = 0; i < others.size(); i++) {
+                if (waitFor(others.get(i))) {
+                    sentCount += round.get(i + 1).size();
+                } else {
+                    roundSucceeded = false;
+                }
+            }
+            if (!roundSucceeded) {
+                break;
+            }
+        }
+        return sentCount;
+    }
+
+    private static boolean waitFor(Future<Boolean> sent) {
+        try {
+            return sent.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            ParselyLog.e("Exception thrown while sending a batch", ex.getCause());
+            return false;
+        }
+    }
+
+    /*! \brief Encode and send one batch, removing its events from the queue and storage once
+     *  delivered. Runs on the pipeline or a sender thread while holding the upload lease.
+     *
+     *  @param events    The events to send.
+     *  @param visitorId The visitor ID to bind to the events, or null if they carry their own.
+     *  @return          Whether the events were delivered.
+     */
+    private boolean sendBatch(ArrayList<Map<String, Object>> events, String visitorId) {
+        if (events.isEmpty()) {
+            return true;
+        }
+        ParselyLog.d("Sending request with %d events", events.size());
+
+        boolean compact = this.compactWireFormat && !this.compactWireFormatRejected;
+        byte[] body = this.encode(events, visitorId, compact);
+        if (body == null) {
+            return false;
+        }
+
+        if (this.dryRun) {
+            ParselyLog.d("Debug mode on. Not sending to Parse.ly");
+        } else {
+            if (this.lastFlushFailed) {
+                this.metrics.increment(ParselyMetrics.FLUSH_RETRIES);
+            }
+            long sentElapsed = this.clock.elapsedMillis();
+            long serverDateMillis;
+            try {
+                try {
+                    serverDateMillis = this.send(
+                            compact ? ColumnarBatchFormat.CONTENT_TYPE : JSON_CONTENT_TYPE, body, events.size());
+                } catch (UnsupportedMediaTypeException ex) {
+                    if (!compact) {
+                        throw ex;
+                    }
+                    ParselyLog.d("Compact batches not accepted. Falling back to JSON.");
+                    this.compactWireFormatRejected = true;
+                    body = this.encode(events, visitorId, false);
+                    if (body == null) {
+                        return false;
+                    }
+                    sentElapsed = this.clock.elapsedMillis();
+                    serverDateMillis = this.send(JSON_CONTENT_TYPE, body, events.size());
+                }
+            } catch (Exception ex) {
+                ParselyLog.w("Pixel request exception: %s", ex);
+                long latencyMillis = this.clock.elapsedMillis() - sentElapsed;
+                this.batchSizer.onRequestFinished(events.size(), body.length, latencyMillis, false);
+                this.onBatchRequestFinished(false, latencyMillis);
+                return false;
+            }
+            ParselyLog.d("Pixel request success");
+            long receivedElapsed = this.clock.elapsedMillis();
+            this.clock.onServerDate(serverDateMillis, sentElapsed, receivedElapsed);
+            this.batchSizer.onRequestFinished(events.size(), body.length, receivedElapsed - sentElapsed, true);
+            this.onBatchRequestFinished(true, receivedElapsed - sentElapsed);
+        }
+        this.onBatchDelivered(events);
+        return true;
+    }
+
+    /*! \brief Encode a batch as JSON or compactly, recording the encoding metrics.
+     *
+     *  @return The body, or null if the events couldn't be encoded.
+     */
+    private byte[] encode(List<Map<String, Object>> events, String visitorId, boolean compact) {
+        long encodeStartNanos = System.nanoTime();
+        byte[] body = null;
+        long startNanos = this.recorder.begin(FlightRecorder.ENCODE);
+        try {
+            if (compact) {
+                body = ColumnarBatchFormat.encode(events, visitorId);
+            } else {
+                body = encodeBatch(events, visitorId);
+            }
+        } catch (RuntimeException ex) {
+            ParselyLog.e("Failed to encode events", ex);
+        } finally {
+            this.recorder.end(FlightRecorder.ENCODE, startNanos, events.size(), body != null);
+        }
+        if (body == null) {
+            return null;
+        }
+        this.metrics.record(ParselyMetrics.ENCODE_TIME_MICROS, (System.nanoTime() - encodeStartNanos) / 1000);
+        this.metrics.record(ParselyMetrics.BATCH_EVENTS, events.size());
+        this.metrics.record(ParselyMetrics.BATCH_BYTES, body.length);
+        if (ParselyLog.isLoggable(ParselyLog.DEBUG)) {
+            ParselyLog.d("POST Data %s", new String(compact ? ColumnarBatchFormat.decodeToJson(body) : body,
+                    Charset.forName("UTF-8")));
+        }
+        return body;
+    }
+
+    /*! \brief Send one batch through the transport, recording the request.
+     *
+     *  @return The server's `Date`, see `Transport.send`.
+     */
+    private long send(String contentType, byte[] body, int eventCount) throws IOException {
+        boolean sent = false;
+        long startNanos = this.recorder.begin(FlightRecorder.SEND);
+        try {
+            long serverDateMillis = this.transport.send(this.url, contentType, body);
+            sent = true;
+            return serverDateMillis;
+        } finally {
+            this.recorder.end(FlightRecorder.SEND, startNanos, eventCount, sent);
+        }
+    }
+
+    /*! \brief Remove delivered (or dropped) events from memory and from every process's storage.
+     *
+     * Events queued or stored since the batch was built are kept for the next flush.
+     *
+     * @param events The events that were sent.
+     */
+    private void onBatchDelivered(List<Map<String, Object>> events) {
+        this.queue.removeAll(events);
+        int storedCount = -1;
+        long startNanos = this.recorder.begin(FlightRecorder.REMOVE_STORED);
+        try {
+            storedCount = this.store.removeAll(events);
+        } finally {
+            this.recorder.end(FlightRecorder.REMOVE_STORED, startNanos, events.size(), storedCount >= 0);
+        }
+        this.metrics.setGauge(ParselyMetrics.QUEUE_DEPTH, this.queue.size());
+        this.setStoredCount(storedCount);
+        if (this.queue.size() == 0 && storedCount == 0) {
+            ParselyLog.d("Event queue empty, flush timer cleared.");
+            this.stopFlushTimer();
+        }
+    }
+
+    /*! \brief Encode a batch of events as the JSON body expected by the proxy server.
+     *
+     * Heartbeats are spliced into their pre-encoded templates and immutable metadata is
+     * written from its cached JSON; everything else is encoded from its Map.
+     *
+     * @param events    The events to encode.
+     * @param visitorId The visitor ID to add to the `data` of events lacking one, or null.
+     * @return          The UTF-8 encoded `{"events": [...]}` body, or null if encoding failed.
+     */
+    static byte[] encodeBatch(List<Map<String, Object>> events, String visitorId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(events.size() * 256);
+        try {
+            out.write(BATCH_PREFIX, 0, BATCH_PREFIX.length);
+            for (int i = 0; i < events.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeEvent(out, events.get(i), visitorId);
+            }
+            out.write(BATCH_SUFFIX, 0, BATCH_SUFFIX.length);
+        } catch (RuntimeException ex) {
+            ParselyLog.e("Exception thrown during batch encoding", ex);
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /*! \brief Write one event, binding the visitor ID into its `data` unless it has one.
+     */
+    private static void writeEvent(ByteArrayOutputStream out, Map<String, Object> event, String visitorId) {
+        if (visitorId == null) {
+            JsonWriter.write(out, event);
+            return;
+        }
+        if (event instanceof HeartbeatEvent) {
+            ((HeartbeatEvent) event).writeJson(out, visitorId);
+            return;
+        }
+        Object data = event.get("data");
+        if (data != null && (!(data instanceof Map) || ((Map<?, ?>) data).containsKey(VisitorIdentity.DATA_KEY))) {
+            JsonWriter.write(out, event);
+            return;
+        }
+        out.write('{');
+        for (Map.Entry<String, Object> entry : event.entrySet()) {
+            if (entry.getKey().equals("data")) {
+                continue;
+            }
+            JsonWriter.writeString(out, entry.getKey());
+            out.write(':');
+            JsonWriter.write(out, entry.getValue());
+            out.write(',');
+        }
+        JsonWriter.writeString(out, "data");
+        out.write(':');
+        out.write('{');
+        out.write(VISITOR_ID_MEMBER, 0, VISITOR_ID_MEMBER.length);
+        JsonWriter.writeString(out, visitorId);
+        if (data != null) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+                out.write(',');
+                JsonWriter.writeString(out, String.valueOf(entry.getKey()));
+                out.write(':');
+                JsonWriter.write(out, entry.getValue());
+            }
+        }
+        out.write('}');
+        out.write('}');
+    }
+
+    /*! \brief Synchronously send a request to Parse.ly.
+     *
+     * @param url         The URL to request.
+     * @param contentType The body's content type.
+     * @param body        The body to POST, or null for a GET.
+     * @return            The connection, after the response has been received.
+     * @throws UnsupportedMediaTypeException If the server rejected the content type.
+     * @throws IOException If the request fails.
+     */
+    static HttpURLConnection post(String url, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (body != null) {  // batched (post data included)
+            connection.setDoOutput(true);  // Triggers POST (aka silliest interface ever)
+            connection.setRequestProperty("Content-Type", contentType);
+
+            OutputStream output = connection.getOutputStream();
+            output.write(body);
+            output.close();
+        }
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            connection.disconnect();
+            throw new UnsupportedMediaTypeException(contentType);
+        }
+        connection.getInputStream().close();
+        return connection;
+    }
+
+    private static final class NamedInterceptor {
+        final String name;
+        final ParselyInterceptor interceptor;
+
+        NamedInterceptor(String name, ParselyInterceptor interceptor) {
+            this.name = name;
+            this.interceptor = interceptor;
+        }
+    }
+
+    /*! \brief Builder for pipelines.
+     */
+    public static class Builder {
+        private final File storageDirectory;
+        private String storageFileName = EventStore.DEFAULT_FILE_NAME;
+        private String processSuffix;
+        private String url = DEFAULT_URL;
+        private Transport transport = HTTP_TRANSPORT;
+        private ParselyClock clock = ParselyClock.SYSTEM;
+        private long targetRequestMillis = 3000;
+        private long flushIntervalMillis = 60000;
+        private int queueSizeLimit = 50;
+        private int storageSizeLimit = 100;
+
+        /*! \brief Start building a pipeline.
+         *
+         * @param storageDirectory Private, existing directory to store unsent events in.
+         */
+        public Builder(File storageDirectory) {
+            if (storageDirectory == null) {
+                throw new NullPointerException("storageDirectory cannot be null.");
+            }
+            this.storageDirectory = storageDirectory;
+        }
+
+        public Builder url(String url) {
+            if (url == null) {
+                throw new NullPointerException("url cannot be null.");
+            }
+            this.url = url;
+            return this;
+        }
+
+        public Builder transport(Transport transport) {
+            if (transport == null) {
+                throw new NullPointerException("transport cannot be null.");
+            }
+            this.transport = transport;
+            return this;
+        }
+
+        Builder clock(ParselyClock clock) {
+            if (clock == null) {
+                throw new NullPointerException("clock cannot be null.");
+            }
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder flushIntervalMillis(long flushIntervalMillis) {
+            if (flushIntervalMillis <= 0) {
+                throw new IllegalArgumentException("flushIntervalMillis must be positive.");
+            }
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        /*! \brief How long a batch request should take. Batches are sized to match from the
+         *  throughput and latency of recent requests. Defaults to 3 seconds.
+         */
+        public Builder targetRequestMillis(long targetRequestMillis) {
+            if (targetRequestMillis <= 0) {
+                throw new IllegalArgumentException("targetRequestMillis must be positive.");
+            }
+            this.targetRequestMillis = targetRequestMillis;
+            return this;
+        }
+
+        /*! \brief Maximum number of events per priority class kept in memory. Defaults to 50.
+         */
+        public Builder queueSizeLimit(int queueSizeLimit) {
+            if (queueSizeLimit <= 0) {
+                throw new IllegalArgumentException("queueSizeLimit must be positive.");
+            }
+            this.queueSizeLimit = queueSizeLimit;
+            return this;
+        }
+
+        /*! \brief Maximum number of events kept in storage per process. Defaults to 100.
+         */
+        public Builder storageSizeLimit(int storageSizeLimit) {
+            if (storageSizeLimit <= 0) {
+                throw new IllegalArgumentException("storageSizeLimit must be positive.");
+            }
+            this.storageSizeLimit = storageSizeLimit;
+            return this;
+        }
+
+        /*! \brief Identify the current process when several share the storage directory.
+         *
+         * @param processSuffix File name safe identifier, or null for the main process.
+         */
+        public Builder processSuffix(String processSuffix) {
+            this.processSuffix = processSuffix;
+            return this;
+        }
+
+        public ParselyPipeline build() {
+            return new ParselyPipeline(this);
+        }
+    }
+}
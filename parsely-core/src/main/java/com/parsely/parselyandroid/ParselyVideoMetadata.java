@@ -0,0 +1,144 @@
+package com.parsely.parselyandroid;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+/* \brief ParselyMetadata for video content.
+ *
+ */
+public class ParselyVideoMetadata extends ParselyMetadata implements VideoEventMetadata {
+
+    public int durationSeconds;
+
+    /* \brief Create a new ParselyVideoMetadata object.
+     *
+     * @param authors         The names of the authors of the video. Up to 10 authors are accepted.
+     * @param videoId         Unique identifier for the video. Required.
+     * @param section         The category or vertical to which this video belongs.
+     * @param tags            User-defined tags for the video. Up to 20 are allowed.
+     * @param thumbUrl        URL at which the main image for this video is located.
+     * @param title           The title of the video.
+     * @param pubDate         The date this video was published.
+     * @param durationSeconds Duration of the video in seconds. Required.
+     */
+    public ParselyVideoMetadata(
+            @Nullable ArrayList<String> authors,
+            @Nonnull String videoId,
+            @Nullable String section,
+            @Nullable ArrayList<String> tags,
+            @Nullable String thumbUrl,
+            @Nullable String title,
+            @Nullable Calendar pubDate,
+            @Nonnull int durationSeconds
+    ) {
+        super(authors, videoId, section, tags, thumbUrl, title, pubDate);
+        if (videoId == null) {
+            throw new NullPointerException("videoId cannot be null");
+        }
+        this.durationSeconds = durationSeconds;
+    }
+
+    /* \brief Turn this object into a Map
+     *
+     * @return a Map object representing the metadata.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> output = super.toMap();
+        output.put("duration", this.durationSeconds);
+        return output;
+    }
+
+    public String getVideoId() {
+        return this.link;
+    }
+
+    public int getDurationSeconds() {
+        return this.durationSeconds;
+    }
+
+    /* \brief Builder for ImmutableParselyVideoMetadata.
+     *
+     * The video ID and duration are required.
+     */
+    public static class Builder extends ParselyMetadata.Builder {
+        private int durationSeconds;
+
+        /* \brief Create a builder.
+         *
+         * @param videoId         Unique identifier for the video.
+         * @param durationSeconds Duration of the video in seconds.
+         */
+        public Builder(@Nonnull String videoId, int durationSeconds) {
+            if (videoId == null) {
+                throw new NullPointerException("videoId cannot be null");
+            }
+            this.link = videoId;
+            this.durationSeconds = durationSeconds;
+        }
+
+        @Override
+        public Builder authors(@Nullable List<String> authors) {
+            super.authors(authors);
+            return this;
+        }
+
+        /* \brief Set the video ID, which is the link of a video.
+         *
+         * @param link The video's unique identifier. Required.
+         */
+        @Override
+        public Builder link(@Nullable String link) {
+            if (link == null) {
+                throw new NullPointerException("videoId cannot be null");
+            }
+            super.link(link);
+            return this;
+        }
+
+        @Override
+        public Builder section(@Nullable String section) {
+            super.section(section);
+            return this;
+        }
+
+        @Override
+        public Builder tags(@Nullable List<String> tags) {
+            super.tags(tags);
+            return this;
+        }
+
+        @Override
+        public Builder thumbUrl(@Nullable String thumbUrl) {
+            super.thumbUrl(thumbUrl);
+            return this;
+        }
+
+        @Override
+        public Builder title(@Nullable String title) {
+            super.title(title);
+            return this;
+        }
+
+        @Override
+        public Builder pubDate(@Nullable Calendar pubDate) {
+            super.pubDate(pubDate);
+            return this;
+        }
+
+        /* \brief Create an ImmutableParselyVideoMetadata from the values set so far.
+         *
+         * @return a new ImmutableParselyVideoMetadata.
+         */
+        @Override
+        public ImmutableParselyVideoMetadata build() {
+            return new ImmutableParselyVideoMetadata(
+                    this.authors, this.link, this.section, this.tags, this.thumbUrl, this.title,
+                    this.pubDate, this.durationSeconds);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*! \brief Read-only Map that caches its hash code and JSON encoding.
+ *
+ *  Used for values that are attached to many events unchanged, such as immutable metadata:
+ *  the batch encoder writes the cached JSON instead of encoding the Map again.
+ */
+class PreEncodedMap extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Object> map;
+    private final int hash;
+    private transient byte[] json;
+
+    PreEncodedMap(Map<String, Object> map) {
+        this.map = Collections.unmodifiableMap(new HashMap<>(map));
+        this.hash = this.map.hashCode();
+    }
+
+    /*! \brief The JSON encoding of this Map, computed on first use.
+     */
+    byte[] getJson() {
+        byte[] output = this.json;
+        if (output == null) {
+            output = JsonWriter.toBytes(this.map);
+            this.json = output;
+        }
+        return output;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return this.map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.map.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return this.map.entrySet();
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof PreEncodedMap && ((PreEncodedMap) o).hash != this.hash) {
+            return false;
+        }
+        return this.map.equals(o);
+    }
+}
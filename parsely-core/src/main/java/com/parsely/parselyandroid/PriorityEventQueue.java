@@ -0,0 +1,168 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/*! \brief In-memory event queue with a separately bounded queue per priority class.
+ *
+ *  Accessed both from the caller's thread and from the tracker's background tasks, so
+ *  all methods are synchronized.
+ */
+class PriorityEventQueue {
+    private final ArrayList<ArrayList<Map<String, Object>>> queues;
+    private final int[] sizeLimits;
+
+    /*! \brief Create a new queue.
+     *
+     * @param highSizeLimit Maximum number of HIGH priority events kept in memory.
+     * @param lowSizeLimit  Maximum number of LOW priority events kept in memory.
+     */
+    PriorityEventQueue(int highSizeLimit, int lowSizeLimit) {
+        this.queues = new ArrayList<>();
+        for (int i = 0; i < EventPriority.values().length; i++) {
+            this.queues.add(new ArrayList<Map<String, Object>>());
+        }
+        this.sizeLimits = new int[EventPriority.values().length];
+        this.sizeLimits[EventPriority.HIGH.ordinal()] = highSizeLimit;
+        this.sizeLimits[EventPriority.LOW.ordinal()] = lowSizeLimit;
+    }
+
+    synchronized void add(Map<String, Object> event) {
+        this.queues.get(EventPriority.forEvent(event).ordinal()).add(event);
+    }
+
+    /*! \brief Get the first priority class whose queue is over its size limit.
+     *
+     * @return The overflowing priority class, or null if every queue is within its limit.
+     */
+    synchronized EventPriority overflowingPriority() {
+        for (EventPriority priority : EventPriority.values()) {
+            if (this.queues.get(priority.ordinal()).size() > this.sizeLimits[priority.ordinal()]) {
+                return priority;
+            }
+        }
+        return null;
+    }
+
+    /*! \brief Remove the oldest event of the given priority class.
+     *
+     * @return The removed event, or null if that queue was empty.
+     */
+    synchronized Map<String, Object> removeOldest(EventPriority priority) {
+        ArrayList<Map<String, Object>> queue = this.queues.get(priority.ordinal());
+        if (queue.isEmpty()) {
+            return null;
+        }
+        return queue.remove(0);
+    }
+
+    /*! \brief Copy the queued events, HIGH priority first, oldest first within a class.
+     *
+     * @return A new list holding every queued event.
+     */
+    synchronized ArrayList<Map<String, Object>> snapshot() {
+        ArrayList<Map<String, Object>> output = new ArrayList<>(this.size());
+        for (ArrayList<Map<String, Object>> queue : this.queues) {
+            output.addAll(queue);
+        }
+        return output;
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (ArrayList<Map<String, Object>> queue : this.queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    synchronized int size(EventPriority priority) {
+        return this.queues.get(priority.ordinal()).size();
+    }
+
+    synchronized int getSizeLimit(EventPriority priority) {
+        return this.sizeLimits[priority.ordinal()];
+    }
+
+    /*! \brief Remove specific events, keeping any added since they were read.
+     *
+     * @param events The events to remove, e.g. those just persisted.
+     */
+    synchronized void removeAll(Collection<Map<String, Object>> events) {
+        HashSet<Map<String, Object>> removed = new HashSet<>(events);
+        for (ArrayList<Map<String, Object>> queue : this.queues) {
+            queue.removeAll(removed);
+        }
+    }
+
+    /*! \brief Release spare capacity left behind by events that have been removed.
+     */
+    synchronized void trimToSize() {
+        for (ArrayList<Map<String, Object>> queue : this.queues) {
+            queue.trimToSize();
+        }
+    }
+
+    synchronized void clear() {
+        for (ArrayList<Map<String, Object>> queue : this.queues) {
+            queue.clear();
+        }
+    }
+
+    /*! \brief Reorder a list of events so that HIGH priority events come first.
+     *
+     *  The relative order of events within a priority class is preserved.
+     *
+     * @param events The events to order.
+     * @return       A new, priority ordered list.
+     */
+    static ArrayList<Map<String, Object>> orderByPriority(List<Map<String, Object>> events) {
+        ArrayList<Map<String, Object>> output = new ArrayList<>(events.size());
+        for (EventPriority priority : EventPriority.values()) {
+            for (Map<String, Object> event : events) {
+                if (EventPriority.forEvent(event) == priority) {
+                    output.add(event);
+                }
+            }
+        }
+        return output;
+    }
+
+    /*! \brief Find the event that should be evicted first from a list of events.
+     *
+     *  That is the oldest event of the lowest priority class present in the list.
+     *
+     * @param events The events to search, oldest first.
+     * @return       Index of the event to evict, or -1 if the list is empty.
+     */
+    static int evictionIndex(List<Map<String, Object>> events) {
+        EventPriority[] priorities = EventPriority.values();
+        for (int p = priorities.length - 1; p >= 0; p--) {
+            for (int i = 0; i < events.size(); i++) {
+                if (EventPriority.forEvent(events.get(i)) == priorities[p]) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
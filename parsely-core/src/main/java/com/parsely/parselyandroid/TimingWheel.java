@@ -0,0 +1,254 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*! \brief Hashed timing wheel running any number of timeouts off one timer task.
+ *
+ *  Time is divided into ticks of `tickMillis`. A timeout lands in the bucket for the tick it
+ *  expires on, a doubly linked list, so scheduling and cancelling are constant time and a
+ *  cancelled timeout is released at once. Timeouts expire within one tick of their deadline.
+ *
+ *  The timer task only wakes up on the tick of the earliest pending timeout, found by walking
+ *  the buckets from the current tick, and is cancelled when no timeouts are pending, so the
+ *  wheel wakes the device once per deadline rather than once per tick. Tasks run on the
+ *  scheduler's thread and must not block. The scheduler measures delays with
+ *  `System.nanoTime()`, so wall clock changes don't delay them.
+ */
+class TimingWheel {
+    private static final long NO_TICK = Long.MAX_VALUE;
+
+    /*! \brief Work to do when a timeout expires.
+     */
+    interface Task {
+        void run(Timeout timeout);
+    }
+
+    /*! \brief A scheduled task.
+     */
+    static final class Timeout {
+        private final TimingWheel wheel;
+        private final Task task;
+        private final long deadlineMillis;
+        private final long deadlineTick;
+        private Timeout prev, next;
+        private boolean done;
+
+        private Timeout(TimingWheel wheel, Task task, long deadlineMillis, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /*! \brief When this timeout is due, in the wheel clock's `elapsedMillis()`.
+         */
+        long getDeadlineMillis() {
+            return this.deadlineMillis;
+        }
+
+        /*! \brief Cancel this timeout.
+         *
+         * @return True if it was cancelled, false if it had already expired or been cancelled.
+         */
+        boolean cancel() {
+            return this.wheel.cancel(this);
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ParselyClock clock;
+    private final long tickMillis;
+    private final long originMillis;
+    private final Timeout[] buckets;
+    private Runnable driver;
+    private ScheduledFuture<?> driverFuture;
+    private long driverTick = NO_TICK;
+    // The first tick not visited yet; every pending timeout expires on this tick or later.
+    private long tick;
+    private int pending;
+
+    /*! \brief Create a new wheel.
+     *
+     * @param scheduler  Scheduler running the wheel's task.
+     * @param clock      Clock for deadlines.
+     * @param tickMillis Duration of one tick: the wheel's resolution.
+     * @param wheelSize  Number of buckets. Finding the next deadline walks at most this many.
+     */
+    TimingWheel(ScheduledExecutorService scheduler, ParselyClock clock, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive.");
+        }
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.tickMillis = tickMillis;
+        this.originMillis = clock.elapsedMillis();
+        this.buckets = new Timeout[wheelSize];
+    }
+
+    /*! \brief Run a task once after a delay.
+     *
+     * @param task        The task to run.
+     * @param delayMillis Delay before running it, rounded up to whole ticks.
+     * @return            The scheduled timeout.
+     */
+    synchronized Timeout schedule(Task task, long delayMillis) {
+        long now = this.clock.elapsedMillis();
+        if (this.pending == 0) {
+            // Nothing to visit in between; skip the ticks the wheel was idle for.
+            this.tick = Math.max(this.tick, this.tickAt(now));
+        }
+        long deadlineMillis = now + Math.max(0, delayMillis);
+        long deadlineTick = Math.max(this.tick,
+                (deadlineMillis - this.originMillis + this.tickMillis - 1) / this.tickMillis);
+        Timeout timeout = new Timeout(this, task, deadlineMillis, deadlineTick);
+        int index = this.bucketIndex(deadlineTick);
+        Timeout head = this.buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        this.buckets[index] = timeout;
+        this.pending++;
+        if (deadlineTick < this.driverTick) {
+            this.scheduleDriver(deadlineTick, now);
+        }
+        return timeout;
+    }
+
+    /*! \brief Number of timeouts waiting to expire.
+     */
+    synchronized int pendingCount() {
+        return this.pending;
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.done) {
+            return false;
+        }
+        this.unlink(timeout);
+        this.pending--;
+        if (this.pending == 0) {
+            this.cancelDriver();
+        }
+        return true;
+    }
+
+    private void onTick(Runnable firing) {
+        ArrayList<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            if (firing != this.driver) {
+                // Cancelled or replaced after it started running.
+                return;
+            }
+            long now = this.clock.elapsedMillis();
+            long target = this.tickAt(now);
+            // A bucket holds every tick congruent to its index, so one rotation covers them all.
+            long visits = Math.min(target - this.tick + 1, this.buckets.length);
+            for (long i = 0; i < visits; i++) {
+                Timeout timeout = this.buckets[this.bucketIndex(this.tick + i)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= target) {
+                        this.unlink(timeout);
+                        this.pending--;
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            this.tick = Math.max(this.tick, target + 1);
+            this.driver = null;
+            this.driverFuture = null;
+            this.driverTick = NO_TICK;
+        }
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run(timeout);
+            } catch (RuntimeException ex) {
+                // Don't let one task take down every other timeout on the wheel.
+                ParselyLog.e("Exception thrown by timing wheel task", ex);
+            }
+        }
+        synchronized (this) {
+            if (this.pending > 0 && this.driver == null) {
+                this.scheduleDriver(this.nextDeadlineTick(), this.clock.elapsedMillis());
+            }
+        }
+    }
+
+    /*! \brief The tick of the earliest pending timeout, or the end of the current rotation
+     *  if none is due within it.
+     */
+    private long nextDeadlineTick() {
+        int size = this.buckets.length;
+        for (long t = this.tick; t < this.tick + size; t++) {
+            for (Timeout timeout = this.buckets[this.bucketIndex(t)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadlineTick == t) {
+                    return t;
+                }
+            }
+        }
+        return this.tick + size;
+    }
+
+    private void scheduleDriver(long wakeTick, long now) {
+        this.cancelDriver();
+        this.driver = new Runnable() {
+            public void run() {
+                onTick(this);
+            }
+        };
+        this.driverTick = wakeTick;
+        this.driverFuture = this.scheduler.schedule(this.driver,
+                Math.max(0, this.originMillis + wakeTick * this.tickMillis - now), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelDriver() {
+        if (this.driver != null) {
+            this.driverFuture.cancel(false);
+            this.driver = null;
+            this.driverFuture = null;
+            this.driverTick = NO_TICK;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            this.buckets[this.bucketIndex(timeout.deadlineTick)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.done = true;
+    }
+
+    private long tickAt(long elapsedMillis) {
+        return (elapsedMillis - this.originMillis) / this.tickMillis;
+    }
+
+    private int bucketIndex(long tick) {
+        return (int) (tick % this.buckets.length);
+    }
+}
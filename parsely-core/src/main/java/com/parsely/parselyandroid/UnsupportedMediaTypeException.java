@@ -0,0 +1,30 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.IOException;
+
+/*! \brief Thrown by a `ParselyPipeline.Transport` when the server rejects a batch's content type.
+ *
+ *  The pipeline then stops offering compact batches and resends as JSON.
+ */
+public class UnsupportedMediaTypeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedMediaTypeException(String contentType) {
+        super("Content type not accepted: " + contentType);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+/*! \brief Metadata that can be attached to video events.
+ *
+ *  Implemented by the mutable `ParselyVideoMetadata` and by `ImmutableParselyVideoMetadata`,
+ *  created by `ParselyVideoMetadata.Builder`.
+ */
+public interface VideoEventMetadata extends EventMetadata {
+    /*! \brief Unique identifier of the video, sent as its `link`.
+     */
+    String getVideoId();
+
+    /*! \brief Duration of the video in seconds.
+     */
+    int getDurationSeconds();
+}
@@ -0,0 +1,150 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*! \brief The visitor ID, resolved once in the background and bound to events when encoded.
+ *
+ *  Looking the ID up (e.g. the advertising ID from Google Play Services) is slow, so events are
+ *  built without it and `ParselyPipeline` writes it into their `data` when a batch is encoded.
+ *  The ID persisted by an earlier launch is used as soon as it is read, and the lookup then
+ *  revalidates it in the background; only a changed ID is saved, so a reset or withdrawn
+ *  advertising ID replaces the stored one from the next resolution on.
+ */
+final class VisitorIdentity {
+    static final String DATA_KEY = "parsely_site_uuid";
+
+    /*! \brief Slow lookup of the preferred visitor ID. Called once, on a background thread.
+     */
+    interface Source {
+        /*! \brief Look the ID up.
+         *
+         * @return The ID, or null if there is none or the user opted out of it. The fallback ID
+         *         is used instead.
+         * @throws Exception If the lookup failed. The stored or fallback ID is used instead.
+         */
+        String resolve() throws Exception;
+    }
+
+    /*! \brief Persistent storage for the resolved ID.
+     */
+    interface Store {
+        /*! \brief Returns the stored ID, or null if none was stored yet. */
+        String load();
+
+        /*! \brief Persist the resolved ID. */
+        void save(String visitorId);
+    }
+
+    private final Source source;
+    private final Store store;
+    private final String fallback;
+    private final CountDownLatch resolvedLatch;
+    private volatile String resolvedId;
+    private boolean started;
+
+    /*! \brief Create an identity. Call `resolveAsync()` to start the lookup.
+     *
+     * @param source   The preferred ID's lookup.
+     * @param store    Where the resolved ID is kept across launches.
+     * @param fallback The ID to use if the lookup fails and none was stored.
+     */
+    VisitorIdentity(Source source, Store store, String fallback) {
+        if (source == null || store == null || fallback == null) {
+            throw new NullPointerException("source, store and fallback must not be null");
+        }
+        this.source = source;
+        this.store = store;
+        this.fallback = fallback;
+        this.resolvedLatch = new CountDownLatch(1);
+    }
+
+    /*! \brief Start resolving the ID on a background thread. Subsequent calls do nothing.
+     */
+    synchronized void resolveAsync() {
+        if (this.started) {
+            return;
+        }
+        this.started = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                resolve();
+            }
+        }, "ParselyIdentity");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*! \brief The resolved ID, without waiting.
+     *
+     * @return The ID, or null while it is still being resolved.
+     */
+    String getResolvedId() {
+        return this.resolvedId;
+    }
+
+    /*! \brief Wait for the stored or, if there is none, the looked up ID. Must not be called
+     *  from the main thread.
+     *
+     * @param timeoutMillis How long to wait at most.
+     * @return              The resolved ID, or null if it wasn't resolved in time.
+     */
+    String await(long timeoutMillis) {
+        try {
+            this.resolvedLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return this.resolvedId;
+    }
+
+    /*! \brief Use the stored ID, then look the current one up and store it if it changed.
+     *  Blocks for the lookup; `resolveAsync()` calls it on a background thread.
+     */
+    void resolve() {
+        String stored = this.store.load();
+        if (!isEmpty(stored)) {
+            this.publish(stored);
+        }
+        String id;
+        try {
+            id = this.source.resolve();
+            if (isEmpty(id)) {
+                id = this.fallback;
+            }
+        } catch (Exception ex) {
+            ParselyLog.w("Visitor ID lookup failed, falling back to the stored ID: %s", ex);
+            id = isEmpty(stored) ? this.fallback : stored;
+        }
+        if (!id.equals(stored)) {
+            this.store.save(id);
+            ParselyLog.d("Visitor ID resolved: %s", id);
+        }
+        this.publish(id);
+    }
+
+    private void publish(String id) {
+        this.resolvedId = id;
+        this.resolvedLatch.countDown();
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+}
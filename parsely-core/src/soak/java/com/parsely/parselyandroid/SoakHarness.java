@@ -0,0 +1,599 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*! \brief Soak test: simulated days of reading and watching on a virtual clock.
+ *
+ *  Runs the platform-neutral core the way `ParselyTracker` composes it: a pipeline with
+ *  on-disk storage, engagements scheduled on a `TimingWheel` with the tracker's default
+ *  interval strategy, and engaged time measured by an `EngagementAccumulator` from simulated
+ *  interactions and screen state. Time is virtual, so a week runs in a minute or two. The
+ *  transport is a stand-in server that decodes compact batches with the reference decoder,
+ *  and is down for two hours every day.
+ *
+ *  After the simulated days every engagement is stopped and the queue drained; the engaged
+ *  seconds Parse.ly received must then equal those the simulated user spent, counted
+ *  independently of the accumulator. A final day without any network checks that storage
+ *  stays within its limit and empties once the network is back. Throughout, the heap, the
+ *  stored events, the wheel's pending timeouts and the thread count must stay bounded.
+ *
+ *  Usage: `./gradlew :parsely-core:soak [-Pdays=7] [-Pseed=1]`. Prints a report every six
+ *  simulated hours and exits with status 1 if an assertion fails.
+ */
+final class SoakHarness {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long START_EPOCH_MILLIS = 1700000000000L;
+    private static final long STEP_MILLIS = 250;  // the tracker's wheel tick
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long FLUSH_INTERVAL_MILLIS = MINUTE;
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * SECOND;
+    private static final int QUEUE_SIZE_LIMIT = 50;
+    private static final int STORAGE_SIZE_LIMIT = 500;
+    private static final long OUTAGE_MILLIS = 2 * HOUR;
+    private static final long REPORT_INTERVAL_MILLIS = 6 * HOUR;
+    private static final long HEAP_SLACK_BYTES = 4 * 1024 * 1024;
+    private static final int THREAD_SLACK = 8;
+    private static final String MUTATED_KEY = "soak_mutated_after_start";
+    private static final Pattern INC = Pattern.compile("\"inc\":(\\d+)");
+    private static final Pattern ACTION = Pattern.compile("\"action\":\"");
+
+    private final int days;
+    private final Random random;
+    private final File storageDirectory;
+    private final VirtualClock clock = new VirtualClock();
+    private final VirtualTimer wheelTimer = new VirtualTimer();
+    private final TimingWheel wheel;
+    private final EngagementAccumulator accumulator;
+    private final EngagementIntervalStrategy intervalStrategy = new EngagementIntervalStrategy.Geometric(10500, 1.25, 90000);
+    private final ParselyPipeline pipeline;
+
+    // The stand-in server's view, updated on the pipeline's threads.
+    private final AtomicLong receivedEvents = new AtomicLong();
+    private final AtomicLong receivedSeconds = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong aliasedEvents = new AtomicLong();
+    private volatile boolean networkDown;
+
+    // The simulated user, advanced once per second.
+    private boolean screenOn, inSession;
+    private long nextSessionAt, screenOffUntil, activeUntil, nextInteractionAt, articleEndsAt, videoEndsAt;
+    private int articlesLeft, articleCount;
+    private Engagement article, video;
+    private long spentSeconds, enqueuedEvents;
+
+    // Report.
+    private long firstDayMaxHeap, lastDayMaxHeap, maxStoredEvents, maxStoredBytes;
+    private int baselineThreads, maxThreads, maxPendingTimeouts;
+    private long realStartNanos;
+
+    private SoakHarness(int days, long seed) throws IOException {
+        this.days = days;
+        this.random = new Random(seed);
+        this.storageDirectory = File.createTempFile("parsely-soak", "");
+        if (!this.storageDirectory.delete() || !this.storageDirectory.mkdir()) {
+            throw new IOException("Cannot create " + this.storageDirectory);
+        }
+        this.wheel = new TimingWheel(this.wheelTimer, this.clock, STEP_MILLIS, 512);
+        this.accumulator = new EngagementAccumulator(IDLE_TIMEOUT_MILLIS, false, this.clock.elapsedMillis());
+        this.pipeline = new ParselyPipeline.Builder(this.storageDirectory)
+                .clock(this.clock)
+                .transport(new ParselyPipeline.Transport() {
+                    @Override
+                    public long send(String url, String contentType, byte[] body) throws IOException {
+                        return receive(contentType, body);
+                    }
+                })
+                // Flushes are driven on the virtual clock below, never by the real timer.
+                .flushIntervalMillis(TimeUnit.DAYS.toMillis(365))
+                .queueSizeLimit(QUEUE_SIZE_LIMIT)
+                .storageSizeLimit(STORAGE_SIZE_LIMIT)
+                .build();
+        this.pipeline.setCompactWireFormat(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        ParselyLog.setLevel(ParselyLog.ERROR);
+        SoakHarness harness = new SoakHarness(days, seed);
+        try {
+            harness.run();
+        } catch (AssertionError ex) {
+            System.out.println("SOAK FAILED: " + ex.getMessage());
+            System.exit(1);
+        } finally {
+            harness.deleteStorage();
+        }
+        System.exit(0);
+    }
+
+    private void run() {
+        System.out.println(String.format(Locale.US, "Soak: %d simulated days, then a day offline", this.days));
+        System.out.println("sim time   enqueued  received  failed_requests  stored  store_kb  heap_mb  threads  sim_s/s");
+        this.realStartNanos = System.nanoTime();
+        this.baselineThreads = Thread.activeCount();
+        this.nextSessionAt = 7 * HOUR;
+
+        this.simulate(this.days * DAY, false);
+
+        // Everyone stops reading; whatever was engaged must now reach the server.
+        this.endSession();
+        this.flushUntilDelivered();
+        long dropped = this.droppedEvents();
+        check(dropped == 0, "%d events dropped with storage for %d", dropped, STORAGE_SIZE_LIMIT);
+        check(this.receivedSeconds.get() == this.spentSeconds,
+                "server received %d engaged seconds, the user spent %d", this.receivedSeconds.get(), this.spentSeconds);
+        check(this.aliasedEvents.get() == 0,
+                "%d heartbeats picked up data changed after their engagement started", this.aliasedEvents.get());
+        check(this.lastDayMaxHeap <= this.firstDayMaxHeap * 5 / 4 + HEAP_SLACK_BYTES,
+                "heap grew from %d KB on day 1 to %d KB on the last day",
+                this.firstDayMaxHeap / 1024, this.lastDayMaxHeap / 1024);
+        // Heartbeats are at least 10.5s apart, so the wheel has no reason to wake more often.
+        check(this.wheelTimer.wakeups <= this.days * DAY / (5 * SECOND),
+                "the timing wheel woke up %d times in %d days", this.wheelTimer.wakeups, this.days);
+        long engagedSeconds = this.receivedSeconds.get();
+        long deliveredEvents = this.receivedEvents.get();
+
+        // A day without network: storage must stay bounded and drain once it's back.
+        this.networkDown = true;
+        this.simulate(DAY, true);
+        this.networkDown = false;
+        this.endSession();
+        this.flushUntilDelivered();
+        int stored = this.pipeline.storedEventsCount();
+        check(stored == 0, "%d events left in storage after the network came back", stored);
+
+        double realSeconds = (System.nanoTime() - this.realStartNanos) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Online days: %d engaged seconds spent and received, %d events delivered. "
+                        + "Offline day: %d events dropped, the rest delivered. %d KB sent in total.",
+                engagedSeconds, deliveredEvents, this.droppedEvents(), this.receivedBytes.get() / 1024));
+        System.out.println(String.format(Locale.US,
+                "Peaks: %d stored events, %d KB storage, %d pending timeouts (%d wheel wakeups), %d threads (%d at start). "
+                        + "Heap max %d KB on day 1, %d KB on the last day. %.1f s real time, %.0f events/s.",
+                this.maxStoredEvents, this.maxStoredBytes / 1024, this.maxPendingTimeouts, this.wheelTimer.wakeups, this.maxThreads,
+                this.baselineThreads, this.firstDayMaxHeap / 1024, this.lastDayMaxHeap / 1024, realSeconds,
+                this.enqueuedEvents / realSeconds));
+        System.out.println("SOAK PASSED");
+    }
+
+    /*! \brief Advance the virtual clock by `durationMillis`, one wheel tick at a time.
+     */
+    private void simulate(long durationMillis, boolean offline) {
+        long end = this.clock.elapsedMillis() + durationMillis;
+        while (this.clock.elapsedMillis() < end) {
+            long now = this.clock.advance(STEP_MILLIS);
+            this.wheelTimer.runDue(now);
+            if (now % SECOND == 0) {
+                this.simulateUser(now);
+            }
+            if (now % FLUSH_INTERVAL_MILLIS == 0) {
+                if (!offline) {
+                    this.networkDown = now % DAY >= this.outageStart(now) && now % DAY < this.outageStart(now) + OUTAGE_MILLIS;
+                }
+                this.pipeline.flush().await(TimeUnit.MINUTES.toMillis(1));
+            }
+            if (now % HOUR == 0) {
+                this.sample(now, offline);
+            }
+        }
+    }
+
+    /*! \brief Start of the day's outage, moving through the day from one day to the next.
+     */
+    private long outageStart(long now) {
+        return (9 + (now / DAY) * 5 % 12) * HOUR;
+    }
+
+    /*! \brief One second of the simulated user: sessions of a few articles, some with video.
+     */
+    private void simulateUser(long now) {
+        long timeOfDay = now % DAY;
+        boolean awake = timeOfDay >= 7 * HOUR && timeOfDay < 23 * HOUR;
+        if (!this.inSession) {
+            if (awake && now >= this.nextSessionAt) {
+                this.inSession = true;
+                this.setScreenOn(true, now);
+                this.articlesLeft = 1 + this.random.nextInt(5);
+                this.openArticle(now);
+            }
+        } else {
+            if (!this.screenOn && now >= this.screenOffUntil) {
+                this.setScreenOn(true, now);
+            } else if (this.screenOn && this.random.nextInt(3000) == 0) {
+                this.setScreenOn(false, now);
+                this.screenOffUntil = now + (30 + this.random.nextInt(180)) * SECOND;
+            }
+            if (this.screenOn && now >= this.nextInteractionAt) {
+                this.accumulator.recordInteraction(now);
+                this.activeUntil = now + IDLE_TIMEOUT_MILLIS;
+                this.nextInteractionAt = now + (1 + this.random.nextInt(20)) * SECOND;
+            }
+            if (this.video == null && this.random.nextInt(400) == 0) {
+                this.video = this.startEngagement("vheartbeat", now);
+                this.videoEndsAt = now + (20 + this.random.nextInt(300)) * SECOND;
+            } else if (this.video != null && now >= this.videoEndsAt) {
+                this.video.stop();
+                this.video = null;
+            }
+            if (now >= this.articleEndsAt) {
+                this.closeArticle();
+                if (--this.articlesLeft > 0) {
+                    this.openArticle(now);
+                } else {
+                    this.endSession();
+                    this.nextSessionAt = now + (10 + this.random.nextInt(90)) * MINUTE;
+                }
+            }
+        }
+
+        // What the user spends in the coming second, counted the way Parse.ly defines it.
+        if (this.article != null && this.screenOn && this.activeUntil > now) {
+            this.spentSeconds++;
+        }
+        if (this.video != null && this.screenOn) {
+            this.spentSeconds++;
+        }
+        this.maxPendingTimeouts = Math.max(this.maxPendingTimeouts, this.wheel.pendingCount());
+        check(this.wheel.pendingCount() <= 2, "%d timeouts pending for at most two engagements",
+                this.wheel.pendingCount());
+    }
+
+    private void openArticle(long now) {
+        String url = "https://example.com/article/" + this.articleCount++;
+        Map<String, Object> pageview = this.event("pageview", url, now);
+        this.pipeline.enqueue(pageview);
+        this.enqueuedEvents++;
+        this.article = this.startEngagement("heartbeat", now);
+        this.articleEndsAt = now + (30 + this.random.nextInt(600)) * SECOND;
+    }
+
+    private void closeArticle() {
+        if (this.video != null) {
+            this.video.stop();
+            this.video = null;
+        }
+        if (this.article != null) {
+            this.article.stop();
+            this.article = null;
+        }
+    }
+
+    private void endSession() {
+        this.closeArticle();
+        if (this.screenOn) {
+            this.setScreenOn(false, this.clock.elapsedMillis());
+        }
+        this.inSession = false;
+    }
+
+    private void setScreenOn(boolean on, long now) {
+        this.accumulator.setScreenOn(on, now);
+        this.screenOn = on;
+        if (!on) {
+            this.activeUntil = now;
+        }
+    }
+
+    private Engagement startEngagement(String action, long now) {
+        String url = "https://example.com/article/" + (this.articleCount - 1);
+        Map<String, Object> baseEvent = this.event(action, url, now);
+        Engagement engagement = new Engagement(baseEvent);
+        // The template must have copied the event: later changes to it must not leak out.
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = (Map<String, Object>) baseEvent.get("data");
+        data.put(MUTATED_KEY, true);
+        return engagement;
+    }
+
+    private Map<String, Object> event(String action, String url, long now) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("ts", this.clock.epochSeconds());
+        data.put("parsely_site_uuid", "soak-visitor");
+        data.put("manufacturer", "Soak");
+        data.put("os", "jvm");
+        Map<String, Object> event = new HashMap<>();
+        event.put("action", action);
+        event.put("url", url);
+        event.put("urlref", "https://example.com/");
+        event.put("idsite", "example.com");
+        event.put("data", data);
+        return event;
+    }
+
+    /*! \brief Flush until nothing is left, as the flush timer would while the network is up.
+     */
+    private void flushUntilDelivered() {
+        for (int i = 0; i < 100 && this.pipeline.queueSize() + this.pipeline.storedEventsCount() > 0; i++) {
+            this.clock.advance(FLUSH_INTERVAL_MILLIS);
+            this.pipeline.flush().await(TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+
+    /*! \brief The stand-in server: decode, count and check a batch.
+     */
+    private long receive(String contentType, byte[] body) throws IOException {
+        if (this.networkDown) {
+            throw new IOException("Simulated outage");
+        }
+        byte[] json = ColumnarBatchFormat.CONTENT_TYPE.equals(contentType)
+                ? ColumnarBatchFormat.decodeToJson(body) : body;
+        String batch = new String(json, UTF_8);
+        long events = 0;
+        for (Matcher m = ACTION.matcher(batch); m.find(); ) {
+            events++;
+        }
+        long seconds = 0;
+        for (Matcher m = INC.matcher(batch); m.find(); ) {
+            seconds += Long.parseLong(m.group(1));
+        }
+        if (batch.contains(MUTATED_KEY)) {
+            this.aliasedEvents.incrementAndGet();
+        }
+        this.receivedEvents.addAndGet(events);
+        this.receivedSeconds.addAndGet(seconds);
+        this.receivedBytes.addAndGet(body.length);
+        return 0;
+    }
+
+    private long droppedEvents() {
+        long dropped = 0;
+        for (Map.Entry<String, Long> counter : this.pipeline.getMetrics().getCounters().entrySet()) {
+            if (counter.getKey().startsWith(ParselyMetrics.EVENTS_DROPPED + ".")) {
+                dropped += counter.getValue();
+            }
+        }
+        return dropped;
+    }
+
+    /*! \brief Measure heap, storage and threads, check their bounds and report every six hours.
+     */
+    private void sample(long now, boolean offline) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        if (!offline && now <= DAY) {
+            this.firstDayMaxHeap = Math.max(this.firstDayMaxHeap, heap);
+        }
+        if (!offline && now > (this.days - 1) * DAY) {
+            this.lastDayMaxHeap = Math.max(this.lastDayMaxHeap, heap);
+        }
+
+        int stored = this.pipeline.storedEventsCount();
+        long storedBytes = 0;
+        File[] files = this.storageDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                storedBytes += file.length();
+            }
+        }
+        this.maxStoredEvents = Math.max(this.maxStoredEvents, stored);
+        this.maxStoredBytes = Math.max(this.maxStoredBytes, storedBytes);
+        check(stored <= STORAGE_SIZE_LIMIT, "%d events stored, over the limit of %d", stored, STORAGE_SIZE_LIMIT);
+
+        int threads = Thread.activeCount();
+        this.maxThreads = Math.max(this.maxThreads, threads);
+        check(threads <= this.baselineThreads + THREAD_SLACK, "%d threads running, %d at start",
+                threads, this.baselineThreads);
+
+        if (now % REPORT_INTERVAL_MILLIS == 0) {
+            Long failedRequests = this.pipeline.getMetrics().getCounters().get(ParselyMetrics.FLUSH_FAILED);
+            double realSeconds = (System.nanoTime() - this.realStartNanos) / 1e9;
+            System.out.println(String.format(Locale.US, "%2dd %02d:00  %8d  %8d  %15d  %6d  %8d  %7.1f  %7d  %7.0f",
+                    now / DAY, now % DAY / HOUR, this.enqueuedEvents, this.receivedEvents.get(),
+                    failedRequests == null ? 0 : failedRequests, stored, storedBytes / 1024, heap / 1048576.0,
+                    threads, now / 1000 / realSeconds));
+        }
+    }
+
+    private void deleteStorage() {
+        File[] files = this.storageDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.storageDirectory.delete();
+    }
+
+    private static void check(boolean condition, String format, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(Locale.US, format, args));
+        }
+    }
+
+    /*! \brief An article or video engagement, scheduled like the tracker's `EngagementManager`
+     *  with interaction tracking enabled.
+     */
+    private final class Engagement {
+        private final HeartbeatTemplate template;
+        private final boolean isVideo;
+        private TimingWheel.Timeout waitingTimeout;
+        private long measuredMillis, latestDelayMillis, totalTime;
+        private int heartbeatCount;
+        private boolean started;
+
+        Engagement(Map<String, Object> baseEvent) {
+            this.template = new HeartbeatTemplate(baseEvent);
+            this.isVideo = "vheartbeat".equals(baseEvent.get("action"));
+            this.measuredMillis = this.readMeasuredMillis();
+            this.latestDelayMillis = intervalStrategy.getInitialIntervalMillis();
+            this.started = true;
+            this.scheduleNextExecution();
+        }
+
+        void stop() {
+            if (this.started && this.waitingTimeout.cancel()) {
+                this.enqueueHeartbeat();
+            }
+            this.started = false;
+        }
+
+        private void scheduleNextExecution() {
+            this.waitingTimeout = wheel.schedule(new TimingWheel.Task() {
+                @Override
+                public void run(TimingWheel.Timeout timeout) {
+                    onHeartbeatDue(timeout);
+                }
+            }, this.latestDelayMillis);
+        }
+
+        private void onHeartbeatDue(TimingWheel.Timeout timeout) {
+            if (!this.started || timeout != this.waitingTimeout) {
+                return;
+            }
+            this.enqueueHeartbeat();
+            this.heartbeatCount++;
+            this.latestDelayMillis = intervalStrategy.getNextIntervalMillis(this.latestDelayMillis, this.heartbeatCount);
+            this.scheduleNextExecution();
+        }
+
+        private void enqueueHeartbeat() {
+            long inc = (this.readMeasuredMillis() - this.measuredMillis) / 1000;
+            this.measuredMillis += inc * 1000;
+            if (inc == 0) {
+                return;
+            }
+            this.totalTime += inc;
+            pipeline.enqueue(new HeartbeatEvent(this.template, clock.epochSeconds(), inc, this.totalTime));
+            enqueuedEvents++;
+        }
+
+        private long readMeasuredMillis() {
+            long now = clock.elapsedMillis();
+            return this.isVideo ? accumulator.getScreenOnMillis(now) : accumulator.getEngagedMillis(now);
+        }
+    }
+
+    /*! \brief Clock that only moves when the harness advances it.
+     */
+    private static final class VirtualClock extends ParselyClock {
+        private final AtomicLong elapsed = new AtomicLong();
+
+        long advance(long millis) {
+            return this.elapsed.addAndGet(millis);
+        }
+
+        @Override
+        long elapsedMillis() {
+            return this.elapsed.get();
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return START_EPOCH_MILLIS + this.elapsed.get();
+        }
+    }
+
+    /*! \brief Scheduler running the wheel's task on the virtual clock.
+     *
+     *  The wheel only ever has one task scheduled, and cancels the previous one before
+     *  scheduling another, so the latest task is the live one.
+     */
+    private final class VirtualTimer extends ScheduledThreadPoolExecutor {
+        private Runnable task;
+        private long runAtMillis;
+        private int wakeups;
+
+        VirtualTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable task, long delay, TimeUnit unit) {
+            this.task = task;
+            this.runAtMillis = clock.elapsedMillis() + unit.toMillis(delay);
+            return new VirtualFuture(task);
+        }
+
+        void runDue(long now) {
+            while (this.task != null && this.runAtMillis <= now) {
+                Runnable due = this.task;
+                this.task = null;
+                this.wakeups++;
+                due.run();
+            }
+        }
+
+        private final class VirtualFuture implements ScheduledFuture<Object> {
+            private final Runnable scheduled;
+            private boolean cancelled;
+
+            VirtualFuture(Runnable scheduled) {
+                this.scheduled = scheduled;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (VirtualTimer.this.task != this.scheduled) {
+                    return false;
+                }
+                VirtualTimer.this.task = null;
+                this.cancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return this.cancelled;
+            }
+
+            @Override
+            public boolean isDone() {
+                return this.cancelled || VirtualTimer.this.task != this.scheduled;
+            }
+
+            @Override
+            public Object get() {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) {
+                return null;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(runAtMillis - clock.elapsedMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(this.getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+}
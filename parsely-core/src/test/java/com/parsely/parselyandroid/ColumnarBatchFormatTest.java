@@ -0,0 +1,83 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ColumnarBatchFormatTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesToTheJsonBatch() throws Exception {
+        // Insertion ordered, so the JSON encoder writes members in the decoder's order.
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("ts", 1700000000000L);
+        data.put("os", "android");
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("action", "pageview");
+        event.put("url", "https://example.com/");
+        event.put("data", data);
+        event.put("metadata", "x");
+        List<Map<String, Object>> events = new ArrayList<>();
+        events.add(event);
+        events.add(event);
+
+        byte[] json = ColumnarBatchFormat.decodeToJson(ColumnarBatchFormat.encode(events, null));
+
+        assertEquals(new String(ParselyPipeline.encodeBatch(events, null), UTF_8), new String(json, UTF_8));
+    }
+
+    @Test
+    public void rejectsTruncatedBodies() {
+        List<Map<String, Object>> events = new ArrayList<>();
+        Map<String, Object> event = new HashMap<>();
+        event.put("action", "pageview");
+        events.add(event);
+        byte[] body = ColumnarBatchFormat.encode(events, "visitor");
+        for (int length = 0; length < body.length; length++) {
+            assertRejected(Arrays.copyOf(body, length));
+        }
+    }
+
+    @Test
+    public void rejectsCountsLargerThanTheBody() {
+        // "PCB1", then 100M events and no strings: nine bytes claiming a huge batch.
+        assertRejected(new byte[]{'P', 'C', 'B', '1', (byte) 0x80, (byte) 0xC2, (byte) 0xD7, 0x2F, 0});
+        // A count beyond Integer.MAX_VALUE, which would wrap when cast.
+        assertRejected(new byte[]{'P', 'C', 'B', '1', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0});
+        // A string longer than the rest of the body.
+        assertRejected(new byte[]{'P', 'C', 'B', '1', 0, 1, 0x7F, 'a'});
+    }
+
+    private static void assertRejected(byte[] body) {
+        try {
+            ColumnarBatchFormat.decodeToJson(body);
+            fail("Accepted a malformed body of " + body.length + " bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventStoreTest {
+    private File root;
+
+    @Before
+    public void createDirectories() throws IOException {
+        this.root = File.createTempFile("parsely", "");
+        assertTrue(this.root.delete());
+        assertTrue(new File(this.root, "a").mkdirs());
+        assertTrue(new File(this.root, "b").mkdirs());
+    }
+
+    @After
+    public void deleteDirectories() {
+        delete(this.root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /*! \brief Whether another thread can lock a store while this one holds `held`.
+     */
+    private static boolean canLockWhileHeld(EventStore held, final EventStore other) throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        held.lock();
+        try {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    other.lock();
+                    locked.countDown();
+                    other.unlock();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return locked.await(500, TimeUnit.MILLISECONDS);
+        } finally {
+            held.unlock();
+        }
+    }
+
+    @Test
+    public void storesInDifferentDirectoriesDontContend() throws InterruptedException {
+        EventStore a = new EventStore(new File(this.root, "a"), EventStore.DEFAULT_FILE_NAME, null);
+        EventStore b = new EventStore(new File(this.root, "b"), EventStore.DEFAULT_FILE_NAME, null);
+
+        assertTrue(canLockWhileHeld(a, b));
+    }
+
+    @Test
+    public void storesOfOneDirectoryShareTheLock() throws InterruptedException {
+        EventStore main = new EventStore(new File(this.root, "a"), EventStore.DEFAULT_FILE_NAME, null);
+        EventStore player = new EventStore(new File(this.root, "b/../a"), EventStore.DEFAULT_FILE_NAME, "player");
+
+        assertFalse(canLockWhileHeld(main, player));
+    }
+
+    @Test
+    public void storesInDifferentDirectoriesKeepTheirOwnEvents() {
+        EventStore a = new EventStore(new File(this.root, "a"), EventStore.DEFAULT_FILE_NAME, null);
+        EventStore b = new EventStore(new File(this.root, "b"), EventStore.DEFAULT_FILE_NAME, null);
+        ArrayList<Map<String, Object>> events = new ArrayList<>();
+        Map<String, Object> event = new HashMap<>();
+        event.put("action", "pageview");
+        events.add(event);
+
+        a.save(events);
+
+        assertEquals(events, a.loadAll());
+        assertEquals(0, b.loadAll().size());
+    }
+
+    @Test
+    public void savingReplacesTheSegmentWithoutLeavingTemporaryFiles() {
+        File directory = new File(this.root, "a");
+        EventStore store = new EventStore(directory, EventStore.DEFAULT_FILE_NAME, null);
+        ArrayList<Map<String, Object>> events = new ArrayList<>();
+        Map<String, Object> event = new HashMap<>();
+        event.put("action", "pageview");
+        events.add(event);
+
+        store.save(events);
+        events.add(new HashMap<>(event));
+        store.save(events);
+
+        assertEquals(2, store.loadAll().size());
+        for (String name : directory.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParselyInterceptorTest {
+    private File directory;
+    private ParselyPipeline pipeline;
+    private final StringBuilder sent = new StringBuilder();
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = File.createTempFile("parsely-test", "");
+        assertTrue(this.directory.delete() && this.directory.mkdir());
+        this.pipeline = new ParselyPipeline.Builder(this.directory)
+                .transport(new ParselyPipeline.Transport() {
+                    @Override
+                    public long send(String url, String contentType, byte[] body) {
+                        sent.append(new String(body, Charset.forName("UTF-8")));
+                        return 0;
+                    }
+                })
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void heartbeatsCanBeChangedInPlace() {
+        this.pipeline.addInterceptor("tag", new ParselyInterceptor() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map<String, Object> intercept(Map<String, Object> event) {
+                ((Map<String, Object>) event.get("data")).put("tagged", true);
+                event.remove("urlref");
+                return event;
+            }
+        });
+        this.pipeline.enqueue(new HeartbeatEvent(new HeartbeatTemplate(this.event("heartbeat")), 1700000000L, 5, 15));
+
+        this.flush();
+        assertTrue(this.sent.toString(), this.sent.indexOf("\"tagged\":true") >= 0);
+        assertTrue(this.sent.toString(), this.sent.indexOf("\"inc\":5") >= 0);
+        assertFalse(this.sent.toString(), this.sent.indexOf("urlref") >= 0);
+    }
+
+    @Test
+    public void defaultDataCanBeRemoved() {
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("secret", "s");
+        Map<String, Object> event = this.event("pageview");
+        event.put("data", new LayeredMap(defaults));
+        final int[] afterCalls = {0};
+        this.pipeline.addInterceptor("redact", new ParselyInterceptor() {
+            @Override
+            public Map<String, Object> intercept(Map<String, Object> event) {
+                ((Map<?, ?>) event.get("data")).remove("secret");
+                return Collections.unmodifiableMap(event);
+            }
+        });
+        this.pipeline.addInterceptor("after", new ParselyInterceptor() {
+            @Override
+            public Map<String, Object> intercept(Map<String, Object> event) {
+                afterCalls[0]++;
+                event.put("after", 1);
+                return event;
+            }
+        });
+        this.pipeline.enqueue(event);
+
+        this.flush();
+        assertTrue(this.sent.toString(), this.sent.indexOf("\"after\":1") >= 0);
+        assertFalse(this.sent.toString(), this.sent.indexOf("secret") >= 0);
+        assertEquals(1, afterCalls[0]);
+        assertFalse(this.pipeline.getMetrics().getCounters().containsKey(
+                ParselyMetrics.EVENTS_DROPPED + "." + ParselyMetrics.REASON_INTERCEPTOR_FAILED + ".pageview"));
+    }
+
+    private Map<String, Object> event(String action) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("ts", 1700000000L);
+        Map<String, Object> event = new HashMap<>();
+        event.put("action", action);
+        event.put("url", "https://example.com/");
+        event.put("urlref", "https://example.com/ref");
+        event.put("data", data);
+        return event;
+    }
+
+    private void flush() {
+        // Interceptors run on the pipeline thread, ahead of the flush.
+        assertTrue(this.pipeline.flush().await(5000));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParselyMetadataTest {
+    @Test
+    public void builtMetadataIsUnaffectedByItsInputs() {
+        Calendar pubDate = Calendar.getInstance();
+        pubDate.setTimeInMillis(1000000000000L);
+        List<String> authors = new ArrayList<>(Arrays.asList("A"));
+        ImmutableParselyMetadata metadata = new ParselyMetadata.Builder()
+                .authors(authors)
+                .pubDate(pubDate)
+                .build();
+
+        authors.add("B");
+        pubDate.setTimeInMillis(2000000000000L);
+        metadata.getPubDate().setTimeInMillis(3000000000000L);
+
+        assertEquals(Arrays.asList("A"), metadata.toMap().get("authors"));
+        assertEquals(1000000000L, metadata.toMap().get("pub_date_tmsp"));
+        assertSame(metadata.toMap(), metadata.toMap());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void builtMetadataListsAreReadOnly() {
+        new ParselyMetadata.Builder().tags(Arrays.asList("a")).build().getTags().add("b");
+    }
+
+    @Test
+    public void builtMetadataIsEqualByContent() {
+        ImmutableParselyMetadata first = new ParselyMetadata.Builder().title("Title").build();
+        ImmutableParselyMetadata second = new ParselyMetadata.Builder().title("Title").build();
+
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, new ParselyMetadata.Builder().title("Other").build());
+        assertNotEquals(first, new ParselyVideoMetadata.Builder("id", 60).title("Title").build());
+    }
+
+    @Test
+    public void videoLinkSetsTheVideoId() {
+        ParselyMetadata.Builder builder = new ParselyVideoMetadata.Builder("first", 60);
+        ImmutableParselyMetadata video = builder.link("second").title("Title").build();
+        assertTrue(video instanceof ImmutableParselyVideoMetadata);
+        assertEquals("second", ((ImmutableParselyVideoMetadata) video).getVideoId());
+        assertEquals(60, video.toMap().get("duration"));
+    }
+}
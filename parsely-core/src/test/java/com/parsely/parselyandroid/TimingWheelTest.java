@@ -0,0 +1,121 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+    private static final TimingWheel.Task NOTHING = new TimingWheel.Task() {
+        @Override
+        public void run(TimingWheel.Timeout timeout) {
+        }
+    };
+
+    @Test
+    public void runsTimeoutsOnTime() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(Executors.newSingleThreadScheduledExecutor(), ParselyClock.SYSTEM, 10, 8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new TimingWheel.Task() {
+            @Override
+            public void run(TimingWheel.Timeout timeout) {
+                latch.countDown();
+            }
+        }, 200);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+        assertEquals(0, wheel.pendingCount());
+    }
+
+    @Test
+    public void idleWheelReleasesCancelledTimeouts() {
+        TimingWheel wheel = new TimingWheel(Executors.newSingleThreadScheduledExecutor(), ParselyClock.SYSTEM, 1000, 8);
+        TimingWheel.Task task = new TimingWheel.Task() {
+            @Override
+            public void run(TimingWheel.Timeout timeout) {
+            }
+        };
+        WeakReference<TimingWheel.Task> reference = new WeakReference<>(task);
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i == 0 ? task : NOTHING, 5000).cancel();
+        }
+        task = null;
+
+        for (int i = 0; i < 10 && reference.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(reference.get());
+        assertEquals(0, wheel.pendingCount());
+    }
+
+    @Test
+    public void wakesOncePerDeadline() throws InterruptedException {
+        final AtomicInteger wakeups = new AtomicInteger();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1) {
+            @Override
+            public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+                wakeups.incrementAndGet();
+                return super.schedule(task, delay, unit);
+            }
+        };
+        TimingWheel wheel = new TimingWheel(scheduler, ParselyClock.SYSTEM, 10, 512);
+        final CountDownLatch latch = new CountDownLatch(2);
+        TimingWheel.Task countDown = new TimingWheel.Task() {
+            @Override
+            public void run(TimingWheel.Timeout timeout) {
+                latch.countDown();
+            }
+        };
+        wheel.schedule(countDown, 300);
+        wheel.schedule(countDown, 600);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(2, wakeups.get());
+    }
+
+    @Test
+    public void cancelReleasesTheTimeoutWhileOthersArePending() {
+        TimingWheel wheel = new TimingWheel(Executors.newSingleThreadScheduledExecutor(), ParselyClock.SYSTEM, 1000, 8);
+        TimingWheel.Task task = new TimingWheel.Task() {
+            @Override
+            public void run(TimingWheel.Timeout timeout) {
+            }
+        };
+        WeakReference<TimingWheel.Task> reference = new WeakReference<>(task);
+        wheel.schedule(NOTHING, 60000);
+        wheel.schedule(task, 5000).cancel();
+        task = null;
+
+        for (int i = 0; i < 10 && reference.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(reference.get());
+        assertEquals(1, wheel.pendingCount());
+    }
+}
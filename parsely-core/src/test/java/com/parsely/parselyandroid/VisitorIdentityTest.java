@@ -0,0 +1,124 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VisitorIdentityTest {
+    private static class MemoryStore implements VisitorIdentity.Store {
+        String stored;
+        int saves;
+
+        MemoryStore(String stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public String load() {
+            return this.stored;
+        }
+
+        @Override
+        public void save(String visitorId) {
+            this.stored = visitorId;
+            this.saves++;
+        }
+    }
+
+    private static VisitorIdentity.Source returning(final String id) {
+        return new VisitorIdentity.Source() {
+            @Override
+            public String resolve() {
+                return id;
+            }
+        };
+    }
+
+    private static String resolve(VisitorIdentity identity) {
+        identity.resolve();
+        return identity.getResolvedId();
+    }
+
+    @Test
+    public void isUnknownUntilResolved() {
+        VisitorIdentity identity = new VisitorIdentity(returning("ad-id"), new MemoryStore(null), "android-id");
+
+        assertNull(identity.getResolvedId());
+        assertEquals("ad-id", resolve(identity));
+    }
+
+    @Test
+    public void usesStoredIdWithoutWaitingForTheLookup() throws InterruptedException {
+        final CountDownLatch lookup = new CountDownLatch(1);
+        VisitorIdentity.Source slow = new VisitorIdentity.Source() {
+            @Override
+            public String resolve() throws Exception {
+                lookup.await();
+                return "stored-id";
+            }
+        };
+        VisitorIdentity identity = new VisitorIdentity(slow, new MemoryStore("stored-id"), "android-id");
+
+        identity.resolveAsync();
+        assertEquals("stored-id", identity.await(2000));
+        lookup.countDown();
+    }
+
+    @Test
+    public void savesOnlyAChangedId() {
+        MemoryStore store = new MemoryStore("ad-id");
+
+        assertEquals("ad-id", resolve(new VisitorIdentity(returning("ad-id"), store, "android-id")));
+        assertEquals(0, store.saves);
+    }
+
+    @Test
+    public void replacesStoredIdWhenAdvertisingIdIsReset() {
+        MemoryStore store = new MemoryStore("old-ad-id");
+
+        assertEquals("new-ad-id", resolve(new VisitorIdentity(returning("new-ad-id"), store, "android-id")));
+        assertEquals("new-ad-id", store.stored);
+        assertEquals(1, store.saves);
+    }
+
+    @Test
+    public void usesFallbackInsteadOfStoredIdWhenThereIsNone() {
+        MemoryStore store = new MemoryStore("old-ad-id");
+
+        assertEquals("android-id", resolve(new VisitorIdentity(returning(null), store, "android-id")));
+        assertEquals("android-id", store.stored);
+    }
+
+    @Test
+    public void usesStoredIdWhenLookupFails() {
+        MemoryStore store = new MemoryStore("old-ad-id");
+        VisitorIdentity.Source failing = new VisitorIdentity.Source() {
+            @Override
+            public String resolve() throws Exception {
+                throw new IOException("Play Services unavailable");
+            }
+        };
+
+        assertEquals("old-ad-id", resolve(new VisitorIdentity(failing, store, "android-id")));
+        assertEquals("android-id", resolve(new VisitorIdentity(failing, new MemoryStore(null), "android-id")));
+    }
+}
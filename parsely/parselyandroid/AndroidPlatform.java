@@ -0,0 +1,173 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.provider.Settings.Secure;
+import android.util.Log;
+
+import com.google.android.gms.ads.identifier.AdvertisingIdClient;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/*! \brief Android implementations of the hooks the platform-neutral core needs.
+ */
+final class AndroidPlatform {
+    /*! \brief Log sink writing to `android.util.Log`. The default once a tracker exists.
+     */
+    static final ParselyLog.Sink LOG_SINK = new ParselyLog.Sink() {
+        @Override
+        public void log(int level, String message, Throwable error) {
+            if (error != null) {
+                message = message + '\n' + Log.getStackTraceString(error);
+            }
+            Log.println(level, ParselyLog.TAG, message);
+        }
+    };
+
+    /*! \brief Clock measuring durations with `SystemClock.elapsedRealtime()`, which keeps
+     *  counting in deep sleep.
+     */
+    static final ParselyClock CLOCK = new ParselyClock() {
+        @Override
+        long elapsedMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /*! \brief Trace sink emitting `android.os.Trace` sections.
+     */
+    static final FlightRecorder.TraceSink TRACE_SINK = new FlightRecorder.TraceSink() {
+        @Override
+        public void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+    };
+
+    private static final String PREFERENCES_NAME = "parsely-prefs";
+    private static final String UUID_KEY = "parsely-uuid";
+
+    private AndroidPlatform() {
+    }
+
+    /*! \brief Start building a pipeline storing events in the app's private files, segmented by
+     *  process, and measuring time with `CLOCK`.
+     *
+     * @param context Any context of the app.
+     */
+    static ParselyPipeline.Builder pipelineBuilder(Context context) {
+        Context appContext = context.getApplicationContext();
+        return new ParselyPipeline.Builder(appContext.getFilesDir())
+                .processSuffix(processSuffix(appContext))
+                .clock(CLOCK);
+    }
+
+    /*! \brief Open an event store in the app's private files, segmented by process.
+     *
+     * @param context  Any context of the app.
+     * @param fileName File name of the main process's segment.
+     */
+    static EventStore eventStore(Context context, String fileName) {
+        Context appContext = context.getApplicationContext();
+        return new EventStore(appContext.getFilesDir(), fileName, processSuffix(appContext));
+    }
+
+    /*! \brief Create the visitor identity: the advertising ID, stored in `parsely-prefs`, or
+     *  `ANDROID_ID` if Google Play Services can't provide one or the user limited ad tracking.
+     */
+    static VisitorIdentity visitorIdentity(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final SharedPreferences settings = appContext.getSharedPreferences(PREFERENCES_NAME, 0);
+        String androidId = Secure.getString(appContext.getContentResolver(), Secure.ANDROID_ID);
+        return new VisitorIdentity(
+                new VisitorIdentity.Source() {
+                    @Override
+                    public String resolve() throws Exception {
+                        AdvertisingIdClient.Info idInfo = AdvertisingIdClient.getAdvertisingIdInfo(appContext);
+                        if (idInfo == null || idInfo.isLimitAdTrackingEnabled()) {
+                            return null;
+                        }
+                        return idInfo.getId();
+                    }
+                },
+                new VisitorIdentity.Store() {
+                    @Override
+                    public String load() {
+                        return settings.getString(UUID_KEY, null);
+                    }
+
+                    @Override
+                    public void save(String visitorId) {
+                        settings.edit().putString(UUID_KEY, visitorId).apply();
+                    }
+                },
+                androidId == null ? "" : androidId);
+    }
+
+    /*! \brief Returns whether the network is accessible and Parsely is reachable.
+     */
+    static boolean isNetworkAvailable(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnectedOrConnecting();
+    }
+
+    /*! \brief Get a file name safe suffix identifying the current process.
+     *
+     * @return The suffix, e.g. `player` for `com.example:player`, or null in the app's main process.
+     */
+    static String processSuffix(Context context) {
+        String processName = null;
+        try {
+            FileInputStream in = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = in.read(buffer);
+            in.close();
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            processName = new String(buffer, 0, end, "UTF-8").trim();
+        } catch (IOException ex) {
+            ParselyLog.w("Couldn't read process name: %s", ex);
+        }
+        String packageName = context.getPackageName();
+        if (processName == null || processName.length() == 0 || processName.equals(packageName)) {
+            return null;
+        }
+        if (processName.startsWith(packageName + ":")) {
+            processName = processName.substring(packageName.length() + 1);
+        }
+        return processName.replaceAll("[^A-Za-z0-9_.]", "_");
+    }
+}
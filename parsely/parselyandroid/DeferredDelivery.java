@@ -0,0 +1,88 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+
+/*! \brief Schedules `ParselyUploadJobService` with the constraints chosen by the app.
+ */
+class DeferredDelivery {
+    static final int DEFAULT_JOB_ID = 0x5041524C;  // "PARL"
+    static final String EXTRA_COMPACT_WIRE_FORMAT = "compactWireFormat";
+    private static final long INITIAL_BACKOFF_MILLIS = 30000;
+
+    private final Context context;
+    private final int jobId;
+    private final boolean requireUnmetered, requireCharging;
+
+    DeferredDelivery(Context context, int jobId, boolean requireUnmetered, boolean requireCharging) {
+        this.context = context.getApplicationContext();
+        this.jobId = jobId;
+        this.requireUnmetered = requireUnmetered;
+        this.requireCharging = requireCharging;
+    }
+
+    /*! \brief Schedule the upload job unless it's already pending.
+     *
+     *  Scheduling a job ID that is already running stops it, so pending jobs are left alone.
+     *
+     * @param compactWireFormat Whether the job should offer the tracker's compact batches.
+     */
+    void schedule(boolean compactWireFormat) {
+        JobScheduler scheduler = this.getScheduler();
+        if (scheduler == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= 24 && scheduler.getPendingJob(this.jobId) != null) {
+            return;
+        }
+        PersistableBundle extras = new PersistableBundle();
+        extras.putBoolean(EXTRA_COMPACT_WIRE_FORMAT, compactWireFormat);
+        JobInfo job = new JobInfo.Builder(this.jobId, new ComponentName(this.context, ParselyUploadJobService.class))
+                .setRequiredNetworkType(this.requireUnmetered
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(this.requireCharging)
+                .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+        try {
+            if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+                ParselyLog.w("Couldn't schedule deferred delivery job %d", this.jobId);
+            }
+        } catch (IllegalArgumentException ex) {
+            // Thrown when ParselyUploadJobService is missing from the manifest.
+            ParselyLog.e("Deferred delivery unavailable", ex);
+        }
+    }
+
+    /*! \brief Cancel the upload job if it's pending.
+     */
+    void cancel() {
+        JobScheduler scheduler = this.getScheduler();
+        if (scheduler != null) {
+            scheduler.cancel(this.jobId);
+        }
+    }
+
+    private JobScheduler getScheduler() {
+        return (JobScheduler) this.context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/*! \brief Detects when the app moves between foreground and background.
+ *
+ *  Counts started activities: the app is in the background once the last started activity
+ *  stops, unless it is only being recreated for a configuration change (e.g. rotation).
+ *  Registered by `ParselyTracker.enableLifecycleTracking()`.
+ */
+class ParselyLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+    private final ParselyTracker tracker;
+    private int startedActivities;
+    private boolean inBackground;
+
+    ParselyLifecycleCallbacks(ParselyTracker tracker) {
+        this.tracker = tracker;
+        this.startedActivities = 0;
+        this.inBackground = false;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        this.startedActivities++;
+        if (this.startedActivities == 1 && this.inBackground) {
+            this.inBackground = false;
+            this.tracker.onEnterForeground();
+        }
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        // Activities started before registration were never counted.
+        if (this.startedActivities > 0) {
+            this.startedActivities--;
+        }
+        if (this.startedActivities == 0 && !activity.isChangingConfigurations() && !this.inBackground) {
+            this.inBackground = true;
+            this.tracker.onEnterBackground();
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        // Bringing a screen to the front counts as an interaction for engaged time.
+        this.tracker.recordInteraction();
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
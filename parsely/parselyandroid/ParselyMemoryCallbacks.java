@@ -0,0 +1,45 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/*! \brief Forwards memory pressure signals to the tracker.
+ *
+ *  Registered on the application context when the tracker is created.
+ */
+class ParselyMemoryCallbacks implements ComponentCallbacks2 {
+    private final ParselyTracker tracker;
+
+    ParselyMemoryCallbacks(ParselyTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        this.tracker.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        this.tracker.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
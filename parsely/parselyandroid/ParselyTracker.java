@@ -16,40 +16,21 @@
 
 package com.parsely.parselyandroid;
 
-import android.annotation.TargetApi;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.AsyncTask;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Build;
-import android.provider.Settings.Secure;
+import android.os.PowerManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.android.gms.ads.identifier.AdvertisingIdClient;
-import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
-import com.google.android.gms.common.GooglePlayServicesRepairableException;
-
-import org.codehaus.jackson.map.ObjectMapper;
-
-import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Formatter;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /*! \brief Tracks Parse.ly app views in Android apps
  *
@@ -60,45 +41,97 @@ public class ParselyTracker {
     private static ParselyTracker instance = null;
     private static int DEFAULT_FLUSH_INTERVAL_SECS = 60;
     private static int DEFAULT_ENGAGEMENT_INTERVAL_MILLIS = 10500;
-    protected ArrayList<Map<String, Object>> eventQueue;
-    private String siteId, rootUrl, storageKey, uuidKey, adKey;
+    private static double DEFAULT_ENGAGEMENT_INTERVAL_MULTIPLIER = 1.25;
+    private static int MAX_ENGAGEMENT_INTERVAL_MILLIS = 90000;
+    private static final long ENGAGEMENT_WHEEL_TICK_MILLIS = 250;
+    private static final int ENGAGEMENT_WHEEL_SIZE = 512;
+    private static final String ROLLUP_FILE_NAME = "parsely-rollup.ser";
+    private String siteId;
     private boolean isDebug;
-    private SharedPreferences settings;
-    private int queueSizeLimit, storageSizeLimit;
     private Map<String, String> deviceInfo;
+    private VisitorIdentity identity;
+    private ParselyClock clock;
     private Context context;
-    private Timer timer;
-    private FlushManager flushManager;
+    private ParselyPipeline pipeline;
     private EngagementManager engagementManager, videoEngagementManager;
+    private TimingWheel engagementWheel;
+    private final HashMap<String, EngagementManager> sessions = new HashMap<>();
+    private final HashMap<String, HashMap<String, Object>> sessionExtraData = new HashMap<>();
+    private volatile Map<String, Object> defaultExtraData;
+    private EngagementIntervalStrategy engagementIntervalStrategy;
+    private ParselyLifecycleCallbacks lifecycleCallbacks;
+    private EngagementAccumulator engagementAccumulator;
+    private BroadcastReceiver screenStateReceiver;
+    private volatile DeferredDelivery deferredDelivery;
+    private volatile EngagementRollup engagementRollup;
+    private long rollupWindowMillis;
+    private TimingWheel.Timeout rollupTimeout;
 
     /*! \brief Create a new ParselyTracker instance.
      *
      */
     protected ParselyTracker(String siteId, int flushInterval, Context c) {
         this.context = c.getApplicationContext();
-        this.settings = this.context.getSharedPreferences("parsely-prefs", 0);
 
+        ParselyLog.setDefaultSink(AndroidPlatform.LOG_SINK);
+        FlightRecorder.setTraceSink(AndroidPlatform.TRACE_SINK);
         this.siteId = siteId;
-        this.uuidKey = "parsely-uuid";
-        this.adKey = null;
-        // get the adkey straight away on instantiation
-        new GetAdKey(c).execute();
-        this.storageKey = "parsely-events.ser";
-        //this.rootUrl = "http://10.0.2.2:5001/";  // emulator localhost
-        this.rootUrl = "https://srv.pixel.parsely.com/";
-        this.queueSizeLimit = 50;
-        this.storageSizeLimit = 100;
         this.deviceInfo = this.collectDeviceInfo();
-        this.timer = new Timer();
         this.isDebug = false;
 
-        this.eventQueue = new ArrayList<>();
+        this.pipeline = AndroidPlatform.pipelineBuilder(this.context)
+                //.url("http://10.0.2.2:5001/mobileproxy")  // emulator localhost
+                .flushIntervalMillis(flushInterval * 1000L)
+                .queueSizeLimit(50)
+                .storageSizeLimit(100)
+                .build();
+        this.clock = this.pipeline.getClock();
+        // Resolve the visitor ID in the background; it is bound to events when they're sent.
+        this.identity = AndroidPlatform.visitorIdentity(this.context);
+        this.identity.resolveAsync();
+        this.pipeline.setIdentity(this.identity);
+        this.pipeline.setHost(new ParselyPipeline.Host() {
+            @Override
+            public boolean isNetworkAvailable() {
+                return AndroidPlatform.isNetworkAvailable(context);
+            }
 
-        this.flushManager = new FlushManager(this.timer, flushInterval * 1000);
+            @Override
+            public void onNetworkUnavailable() {
+                if (deferredDelivery != null) {
+                    // Let the system job send the events once the network is back.
+                    pipeline.spill();
+                }
+            }
 
-        if (this.getStoredQueue() != null && this.getStoredQueue().size() > 0) {
-            this.startFlushTimer();
-        }
+            @Override
+            public void onEventsStored(int storedCount) {
+                scheduleDeferredDelivery();
+            }
+        });
+        this.engagementIntervalStrategy = new EngagementIntervalStrategy.Geometric(
+                DEFAULT_ENGAGEMENT_INTERVAL_MILLIS, DEFAULT_ENGAGEMENT_INTERVAL_MULTIPLIER,
+                MAX_ENGAGEMENT_INTERVAL_MILLIS);
+
+        this.engagementWheel = new TimingWheel(
+                this.pipeline.getScheduler(), this.clock, ENGAGEMENT_WHEEL_TICK_MILLIS, ENGAGEMENT_WHEEL_SIZE);
+
+        this.context.registerComponentCallbacks(new ParselyMemoryCallbacks(this));
+
+        // Read what previous processes left in storage without blocking the caller.
+        this.pipeline.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (pipeline.storedEventsCount() > 0) {
+                    startFlushTimer();
+                    scheduleDeferredDelivery();
+                }
+                // Send engaged time summarized by a previous process that was killed mid-window.
+                for (Map<String, Object> event : EngagementRollup.recover(rollupStore())) {
+                    pipeline.enqueueOnPipelineThread(event);
+                }
+            }
+        });
     }
 
     /*! \brief Singleton instance accessor. Note: This must be called after
@@ -137,25 +170,30 @@ public class ParselyTracker {
         return instance;
     }
 
-    /*! \brief Log a message to the console.
+    /*! \brief Get the base engagement tracking interval.
      *
+     * Please note that this is the _base_ engagement interval. Longer engagements
+     * will enqueue events less frequently over time to save data, depending on the
+     * engagement interval strategy.
+     *
+     * @return The base engagement tracking interval, in seconds.
      */
-    protected static void PLog(String logString, Object... objects) {
-        if (logString.equals("")) {
-            return;
-        }
-        System.out.println(new Formatter().format("[Parsely] " + logString, objects).toString());
+    public double getEngagementInterval() {
+        return this.engagementIntervalStrategy.getInitialIntervalMillis() / 1000.0;
     }
 
-    /*! \brief Get the base engagement tracking interval.
+    /*! \brief Set the strategy deciding how often engaged time heartbeats are sent.
      *
-     * Please note that this is the _base_ engagement interval. Longer engagements
-     * will enqueue events less frequently over time to save data.
+     * Applies to engagements and videos started after this call that don't specify their own
+     * strategy. Defaults to a 10.5s interval growing by 25% per heartbeat up to 90s.
      *
-     * @return The base engagement tracking interval.
+     * @param strategy The engagement interval strategy to use.
      */
-    public double getEngagementInterval() {
-        return DEFAULT_ENGAGEMENT_INTERVAL_MILLIS / 1000;
+    public void setEngagementIntervalStrategy(@NonNull EngagementIntervalStrategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException("strategy cannot be null.");
+        }
+        this.engagementIntervalStrategy = strategy;
     }
 
     /*! \brief Returns whether the engagement tracker is running.
@@ -163,7 +201,7 @@ public class ParselyTracker {
      * @return Whether the engagement tracker is running.
      */
     public boolean engagementIsActive() {
-        return this.engagementManager != null && this.engagementManager.started;
+        return this.engagementManager != null && this.engagementManager.isRunning();
     }
 
     /*! \brief Returns whether video tracking is active.
@@ -171,7 +209,19 @@ public class ParselyTracker {
      * @return Whether video tracking is active.
      */
     public boolean videoIsActive() {
-        return this.videoEngagementManager != null && this.videoEngagementManager.started;
+        return this.videoEngagementManager != null && this.videoEngagementManager.isRunning();
+    }
+
+    /*! \brief Returns whether the given engagement session is running.
+     *
+     * @param sessionId The session ID passed to `startEngagementSession` or `trackPlaySession`.
+     * @return          Whether that session exists and is not paused or stopped.
+     */
+    public boolean sessionIsActive(@NonNull String sessionId) {
+        synchronized (this.sessions) {
+            EngagementManager manager = this.sessions.get(sessionId);
+            return manager != null && manager.isRunning();
+        }
     }
 
     /*! \brief Returns the interval at which the event queue is flushed to Parse.ly.
@@ -179,7 +229,37 @@ public class ParselyTracker {
      * @return The interval at which the event queue is flushed to Parse.ly.
      */
     public long getFlushInterval() {
-        return this.flushManager.getIntervalMillis() / 1000;
+        return this.pipeline.getFlushIntervalMillis() / 1000;
+    }
+
+    /*! \brief Get the tracker's self-telemetry.
+     *
+     * Exposes counters, gauges and histograms for queueing, storage, encoding and uploads.
+     * Register a `ParselyMetrics.Listener` to forward them to your own monitoring.
+     *
+     * @return The tracker's metrics.
+     */
+    public ParselyMetrics getMetrics() {
+        return this.pipeline.getMetrics();
+    }
+
+    /*! \brief Get the tracker's recent flushes, storage operations and requests.
+     *
+     * Call `dump()` on it to attach them to a jank or battery report. The same operations
+     * appear as `Parsely:` sections in system traces.
+     *
+     * @return The tracker's flight recorder.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return this.pipeline.getFlightRecorder();
+    }
+
+    /*! \brief Get the platform-neutral pipeline queueing, storing and sending this tracker's events.
+     *
+     * @return The tracker's pipeline.
+     */
+    public ParselyPipeline getPipeline() {
+        return this.pipeline;
     }
 
     /*! \brief Getter for this.isDebug
@@ -194,12 +274,450 @@ public class ParselyTracker {
      *
      *  Use this flag when developing to prevent the SDK from actually sending requests
      *  to Parse.ly servers. The value it would otherwise send is logged to the console.
+     *  Enabling debug mode also lowers the log level to `ParselyLog.DEBUG`.
      *
      *  @param debug Value to use for debug flag.
      */
     public void setDebug(boolean debug) {
         isDebug = debug;
-        PLog("Debugging is now set to " + isDebug);
+        this.pipeline.setDryRun(debug);
+        if (debug && !ParselyLog.isLoggable(ParselyLog.DEBUG)) {
+            ParselyLog.setLevel(ParselyLog.DEBUG);
+        }
+        ParselyLog.i("Debugging is now set to %s", isDebug);
+    }
+
+    /*! \brief Correct event timestamps for a wrong device clock.
+     *
+     *  When enabled, the tracker learns Parse.ly's time from the `Date` header of each
+     *  delivered batch. If the device clock is off by more than a couple of seconds, later
+     *  events are stamped with the server's time instead. Off by default.
+     *
+     *  @param enabled Whether to correct timestamps.
+     */
+    public void setServerTimeCorrection(boolean enabled) {
+        this.pipeline.setServerTimeCorrection(enabled);
+    }
+
+    /*! \brief Send batches in a compact binary format if Parse.ly accepts it.
+     *
+     *  Heartbeat-heavy batches shrink by an order of magnitude. The tracker falls back to
+     *  JSON by itself if the server declines the format. Off by default.
+     *
+     *  @param enabled Whether to offer compact batches.
+     */
+    public void setCompactWireFormat(boolean enabled) {
+        this.pipeline.setCompactWireFormat(enabled);
+    }
+
+    /*! \brief Sample events for an action by user.
+     *
+     *  Only the given fraction of users will send events for `action`. Whether a user is in the
+     *  sample is derived from their UUID, so it doesn't change between events or app launches.
+     *  Sampled events carry the rate in `data.sampling_rate` so counts can be reweighted.
+     *
+     *  Typically fed from a remote configuration to shed load during traffic spikes, e.g.
+     *  `setSamplingRate("vheartbeat", 0.25)`.
+     *
+     *  @param action The event action to sample (pageview, heartbeat, videostart or vheartbeat).
+     *  @param rate   Fraction of users to keep, between 0 and 1. Use 1 to disable sampling.
+     */
+    public void setSamplingRate(@NonNull String action, double rate) {
+        this.pipeline.setSamplingRate(action, rate);
+        ParselyLog.d("Sampling rate for %s set to %.3f", action, rate);
+    }
+
+    /*! \brief Limit the rate at which events for an action are sent.
+     *
+     *  Uses a token bucket: up to `burst` events may be sent back to back, after which events
+     *  are allowed at `eventsPerMinute`. Events over the limit are dropped, except heartbeats,
+     *  whose engaged time is carried over to the next heartbeat that is sent.
+     *
+     *  @param action          The event action to limit.
+     *  @param eventsPerMinute Sustained number of events allowed per minute.
+     *  @param burst           Number of events that may be sent back to back.
+     */
+    public void setRateLimit(@NonNull String action, double eventsPerMinute, int burst) {
+        this.pipeline.setRateLimit(action, eventsPerMinute, burst);
+        ParselyLog.d("Rate limit for %s set to %.1f/min (burst %d)", action, eventsPerMinute, burst);
+    }
+
+    /*! \brief Remove the rate limit for an action.
+     *
+     *  @param action The event action to stop limiting.
+     */
+    public void clearRateLimit(@NonNull String action) {
+        this.pipeline.clearRateLimit(action);
+    }
+
+    /*! \brief Set extra data sent with every event, e.g. the app version or an A/B bucket.
+     *
+     *  The Map is copied once and referenced by events rather than copied into each of them.
+     *  Extra data passed to a tracking call overrides it key by key. Applies to events tracked
+     *  after this call; engagements already running keep the extra data they started with.
+     *
+     *  @param extraData The extra data, or null to clear it.
+     */
+    public void setDefaultExtraData(@Nullable Map<String, Object> extraData) {
+        this.defaultExtraData = extraData == null
+                ? null : Collections.unmodifiableMap(new HashMap<>(extraData));
+    }
+
+    /*! \brief Set extra data sent with every event of an engagement session.
+     *
+     *  Like `setDefaultExtraData`, for the events of one session started with
+     *  `startEngagementSession` or `trackPlaySession`. Overrides the tracker's default extra
+     *  data and is overridden by extra data passed to `trackPlaySession`. Set it before
+     *  starting the session; it is cleared when the session is stopped.
+     *
+     *  @param sessionId The session.
+     *  @param extraData The extra data, or null to clear it.
+     */
+    public void setSessionExtraData(@NonNull String sessionId, @Nullable Map<String, Object> extraData) {
+        if (sessionId == null) {
+            throw new NullPointerException("sessionId cannot be null.");
+        }
+        synchronized (this.sessions) {
+            if (extraData == null) {
+                this.sessionExtraData.remove(sessionId);
+            } else {
+                this.sessionExtraData.put(sessionId, new HashMap<>(extraData));
+            }
+        }
+    }
+
+    /*! \brief Add, drop or rewrite events before they are queued.
+     *
+     *  Interceptors run in registration order on the tracker's background thread, so
+     *  enrichment and redaction don't slow down tracking calls. See `ParselyInterceptor`.
+     *
+     *  @param name        Name of the interceptor, used in metrics. Replaces any interceptor
+     *                     with the same name.
+     *  @param interceptor The interceptor.
+     */
+    public void addInterceptor(@NonNull String name, @NonNull ParselyInterceptor interceptor) {
+        this.pipeline.addInterceptor(name, interceptor);
+    }
+
+    /*! \brief Unregister an interceptor.
+     *
+     *  @param name Name the interceptor was registered with.
+     */
+    public void removeInterceptor(@NonNull String name) {
+        this.pipeline.removeInterceptor(name);
+    }
+
+    /*! \brief Set how long all interceptors together may take per event before it is reported.
+     *
+     *  See `ParselyPipeline.setInterceptorBudgetMicros`. Defaults to 2ms.
+     *
+     *  @param budgetMicros The budget, in microseconds.
+     */
+    public void setInterceptorBudgetMicros(long budgetMicros) {
+        this.pipeline.setInterceptorBudgetMicros(budgetMicros);
+    }
+
+    /*! \brief Automatically pause engaged time tracking while the app is in the background.
+     *
+     *  Once enabled, all engagement and video tracking timers are suspended when the app goes
+     *  to the background, any accumulated engaged time is flushed once, and the flush timer is
+     *  stopped. Tracking suspended this way resumes when the app comes back to the foreground.
+     *  With this enabled it is no longer necessary to call `stopEngagement()`, `trackPause()` or
+     *  `resetVideo()` from every activity's `onPause` or `onStop`.
+     *
+     *  Call this from `Application.onCreate()` or your first activity's `onCreate()`.
+     *
+     *  @param application The app's Application, e.g. `activity.getApplication()`.
+     */
+    public void enableLifecycleTracking(@NonNull Application application) {
+        if (this.lifecycleCallbacks != null) {
+            return;
+        }
+        this.lifecycleCallbacks = new ParselyLifecycleCallbacks(this);
+        application.registerActivityLifecycleCallbacks(this.lifecycleCallbacks);
+        ParselyLog.d("Lifecycle tracking enabled");
+    }
+
+    /*! \brief Stop pausing engaged time tracking automatically.
+     *
+     *  @param application The Application passed to `enableLifecycleTracking()`.
+     */
+    public void disableLifecycleTracking(@NonNull Application application) {
+        if (this.lifecycleCallbacks == null) {
+            return;
+        }
+        application.unregisterActivityLifecycleCallbacks(this.lifecycleCallbacks);
+        this.lifecycleCallbacks = null;
+    }
+
+    /*! \brief Suspend engagement tracking and flush because the app went to the background.
+     *
+     */
+    void onEnterBackground() {
+        ParselyLog.d("App entered background. Suspending engagement tracking.");
+        for (EngagementManager manager : this.engagementManagers()) {
+            manager.suspend();
+        }
+        this.stopFlushTimer();
+        if (this.deferredDelivery != null) {
+            // Hand everything to the system job instead of relying on the process staying alive.
+            this.pipeline.spill();
+        } else {
+            this.flushEventQueue();
+        }
+    }
+
+    /*! \brief Resume engagement tracking suspended by `onEnterBackground()`.
+     *
+     */
+    void onEnterForeground() {
+        ParselyLog.d("App entered foreground. Resuming engagement tracking.");
+        for (EngagementManager manager : this.engagementManagers()) {
+            manager.resume();
+        }
+        if (this.queueSize() > 0 || this.storedEventsCount() > 0) {
+            this.startFlushTimer();
+        }
+    }
+
+    /*! \brief Release memory when the system asks for it.
+     *
+     *  From `TRIM_MEMORY_RUNNING_LOW` on, the in-memory queue is spilled to persistent storage,
+     *  from where the next flush reads it back, and cached encodings are dropped to be rebuilt
+     *  on next use. `TRIM_MEMORY_UI_HIDDEN` only drops the caches.
+     *
+     * @param level The level passed to `ComponentCallbacks2.onTrimMemory()`.
+     */
+    void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        ParselyLog.d("Trimming memory at level %d", level);
+        if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            this.pipeline.spill();
+        }
+        for (EngagementManager manager : this.engagementManagers()) {
+            manager.trimMemory();
+        }
+        this.pipeline.trimMemory();
+    }
+
+    /*! \brief Measure engaged time from user interactions instead of wall-clock time.
+     *
+     *  Once enabled, engagements only accrue time while the screen is on and
+     *  the user has interacted with the app within the last `idleTimeoutMillis`, and videos only
+     *  accrue time while the screen is on. Heartbeats are only sent when engaged time accrued.
+     *  Running engagements first send the time they measured before.
+     *
+     *  Report interactions with `recordInteraction()`, typically from your activities'
+     *  `onUserInteraction()` and from scroll listeners. Screen state is tracked automatically.
+     *
+     *  @param idleTimeoutMillis How long the user counts as engaged after an interaction.
+     */
+    public void enableInteractionTracking(long idleTimeoutMillis) {
+        this.unregisterScreenStateReceiver();
+        PowerManager pm = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+        boolean screenOn = pm == null || pm.isInteractive();
+        this.engagementAccumulator = new EngagementAccumulator(
+                idleTimeoutMillis, screenOn, this.clock.elapsedMillis());
+
+        final EngagementAccumulator accumulator = this.engagementAccumulator;
+        this.screenStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                boolean on = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                accumulator.setScreenOn(on, clock.elapsedMillis());
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        this.context.registerReceiver(this.screenStateReceiver, filter);
+        this.onAccumulatorChanged();
+        ParselyLog.d("Interaction tracking enabled with %dms idle timeout", idleTimeoutMillis);
+    }
+
+    /*! \brief Go back to measuring engaged time as wall-clock time.
+     *
+     *  Running engagements send the engaged time measured so far and continue on wall-clock
+     *  time.
+     */
+    public void disableInteractionTracking() {
+        this.unregisterScreenStateReceiver();
+        if (this.engagementAccumulator != null) {
+            this.engagementAccumulator = null;
+            this.onAccumulatorChanged();
+        }
+    }
+
+    private void unregisterScreenStateReceiver() {
+        if (this.screenStateReceiver != null) {
+            this.context.unregisterReceiver(this.screenStateReceiver);
+            this.screenStateReceiver = null;
+        }
+    }
+
+    /*! \brief Move running engagements over to the current accumulator, or to wall-clock time.
+     */
+    private void onAccumulatorChanged() {
+        for (EngagementManager manager : this.engagementManagers()) {
+            manager.restart();
+        }
+    }
+
+    /*! \brief Report a user interaction (touch, scroll, key press).
+     *
+     *  Keeps the user engaged for another idle timeout. Does nothing unless
+     *  `enableInteractionTracking` was called. Cheap enough to call on every touch event.
+     */
+    public void recordInteraction() {
+        EngagementAccumulator accumulator = this.engagementAccumulator;
+        if (accumulator != null) {
+            accumulator.recordInteraction(this.clock.elapsedMillis());
+        }
+    }
+
+    /*! \brief Deliver stored events from a system job when the app isn't running.
+     *
+     *  Once enabled, events that are persisted (because the in-memory queue overflowed, the
+     *  network was unreachable or the app went to the background) are uploaded by
+     *  `ParselyUploadJobService`, scheduled with `JobScheduler` to run once its constraints
+     *  are met, even after the process has died. This makes long flush intervals practical.
+     *
+     *  The service must be declared in your `AndroidManifest.xml`:
+     *
+     *      <service
+     *          android:name="com.parsely.parselyandroid.ParselyUploadJobService"
+     *          android:permission="android.permission.BIND_JOB_SERVICE"
+     *          android:exported="false"/>
+     *
+     *  @param jobId            Job ID to use with JobScheduler. Must be unique within your app.
+     *  @param requireUnmetered Only upload over unmetered networks (e.g. Wi-Fi).
+     *  @param requireCharging  Only upload while the device is charging.
+     */
+    public void enableDeferredDelivery(int jobId, boolean requireUnmetered, boolean requireCharging) {
+        this.deferredDelivery = new DeferredDelivery(this.context, jobId, requireUnmetered, requireCharging);
+        if (this.storedEventsCount() > 0) {
+            this.scheduleDeferredDelivery();
+        }
+    }
+
+    /*! \brief Deliver stored events from a system job, using the default job ID.
+     *
+     *  @see #enableDeferredDelivery(int, boolean, boolean)
+     *  @param requireUnmetered Only upload over unmetered networks (e.g. Wi-Fi).
+     *  @param requireCharging  Only upload while the device is charging.
+     */
+    public void enableDeferredDelivery(boolean requireUnmetered, boolean requireCharging) {
+        this.enableDeferredDelivery(DeferredDelivery.DEFAULT_JOB_ID, requireUnmetered, requireCharging);
+    }
+
+    /*! \brief Stop delivering stored events from a system job.
+     *
+     *  Cancels the pending job, if any. Stored events are sent by the next in-app flush.
+     */
+    public void disableDeferredDelivery() {
+        if (this.deferredDelivery != null) {
+            this.deferredDelivery.cancel();
+            this.deferredDelivery = null;
+        }
+    }
+
+    private void scheduleDeferredDelivery() {
+        DeferredDelivery delivery = this.deferredDelivery;
+        if (delivery != null && !this.isDebug) {
+            delivery.schedule(this.pipeline.isCompactWireFormat());
+        }
+    }
+
+    /*! \brief Summarize engaged time locally instead of sending a heartbeat per interval.
+     *
+     *  Once enabled, engaged time is summed per url, urlref and video, and sent as one heartbeat
+     *  per `windowMillis`, when the engagement stops, and before each flush. Engagements keep
+     *  measuring time at their usual intervals, so a summarized heartbeat carries the same total
+     *  as the heartbeats it replaces. The running sums are persisted in the background within a
+     *  few seconds of each change, and sums left behind by a killed process are sent when the
+     *  tracker is next created.
+     *
+     *  Heartbeats summarized this way are not subject to `setRateLimit`.
+     *
+     * @param windowMillis How long to sum engaged time before sending it.
+     */
+    public void enableEngagementRollups(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive.");
+        }
+        this.rollupWindowMillis = windowMillis;
+        if (this.engagementRollup == null) {
+            this.engagementRollup = new EngagementRollup(
+                    this.rollupStore(), this.pipeline.getScheduler(), this.pipeline.getExecutor());
+        }
+    }
+
+    /*! \brief Go back to sending a heartbeat per interval, sending any summarized time now.
+     */
+    public void disableEngagementRollups() {
+        EngagementRollup rollup = this.engagementRollup;
+        if (rollup == null) {
+            return;
+        }
+        this.engagementRollup = null;
+        this.emitRollups(rollup);
+    }
+
+    private EventStore rollupStore() {
+        return AndroidPlatform.eventStore(this.context, ROLLUP_FILE_NAME);
+    }
+
+    /*! \brief Make sure the window of a non-empty rollup table is running.
+     */
+    private void scheduleRollupWindow(final EngagementRollup rollup) {
+        synchronized (rollup) {
+            if (this.rollupTimeout != null || rollup.size() == 0) {
+                return;
+            }
+            this.rollupTimeout = this.engagementWheel.schedule(new TimingWheel.Task() {
+                public void run(TimingWheel.Timeout timeout) {
+                    emitRollups(rollup);
+                }
+            }, this.rollupWindowMillis);
+        }
+    }
+
+    /*! \brief End the current window and enqueue every summarized heartbeat, on the pipeline
+     *  thread ahead of work submitted later, such as a flush.
+     */
+    private void emitRollups(final EngagementRollup rollup) {
+        synchronized (rollup) {
+            if (this.rollupTimeout != null) {
+                this.rollupTimeout.cancel();
+                this.rollupTimeout = null;
+            }
+        }
+        this.pipeline.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Map<String, Object> event : rollup.drain()) {
+                    ParselyLog.d("Enqueuing summarized %s event.", event.get("action"));
+                    pipeline.enqueueOnPipelineThread(event);
+                }
+            }
+        });
+    }
+
+    /*! \brief Enqueue the summarized heartbeat of one engagement, e.g. because it stopped, on
+     *  the pipeline thread.
+     */
+    private void emitRollup(final EngagementRollup rollup, final HeartbeatTemplate template) {
+        this.pipeline.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Object> event = rollup.remove(template);
+                if (event != null) {
+                    ParselyLog.d("Enqueuing summarized %s event.", event.get("action"));
+                    pipeline.enqueueOnPipelineThread(event);
+                }
+            }
+        });
     }
 
     /*! \brief Register a pageview event using a URL and optional metadata.
@@ -211,12 +729,13 @@ public class ParselyTracker {
      *                    when `url` isn't accessible over the Internet (i.e. app-only
      *                    content). Do not use this for **content also hosted on** URLs Parse.ly
      *                    would normally crawl.
-     * @param extraData   A Map of additional information to send with the event.
+     * @param extraData   A Map of additional information to send with the event. Overrides
+     *                    the default extra data, see `setDefaultExtraData`.
      */
     public void trackPageview(
             @NonNull String url,
             @Nullable String urlRef,
-            @Nullable ParselyMetadata urlMetadata,
+            @Nullable EventMetadata urlMetadata,
             @Nullable Map<String, Object> extraData) {
         if (url == null || url.equals("")) {
             throw new NullPointerException("url cannot be null or empty.");
@@ -226,6 +745,9 @@ public class ParselyTracker {
         if (urlRef == null) {
             urlRef = "";
         }
+        if (!this.isAdmitted("pageview")) {
+            return;
+        }
         this.enqueueEvent(this.buildEvent(url, urlRef, "pageview", urlMetadata, extraData));
     }
 
@@ -239,6 +761,25 @@ public class ParselyTracker {
      * @param urlRef Referrer URL associated with this video view.
      */
     public void startEngagement(@NonNull String url, @Nullable String urlRef) {
+        this.startEngagement(url, urlRef, this.engagementIntervalStrategy);
+    }
+
+    /*! \brief Start engaged time tracking for the given URL with a specific heartbeat interval.
+     *
+     * Same as `startEngagement(String, String)`, but sends heartbeats for this engagement at
+     * the intervals given by `intervalStrategy` instead of the tracker's default.
+     *
+     * @param url              The URL to track engaged time for.
+     * @param urlRef           Referrer URL associated with this video view.
+     * @param intervalStrategy Strategy deciding how often heartbeats are sent.
+     */
+    public void startEngagement(
+            @NonNull String url,
+            @Nullable String urlRef,
+            @NonNull EngagementIntervalStrategy intervalStrategy) {
+        if (intervalStrategy == null) {
+            throw new NullPointerException("intervalStrategy cannot be null.");
+        }
         if (url == null || url.equals("")) {
             throw new NullPointerException("url cannot be null or empty.");
         }
@@ -250,9 +791,12 @@ public class ParselyTracker {
         // Cancel anything running
         this.stopEngagement();
 
+        // Opening the content counts as an interaction
+        this.recordInteraction();
+
         // Start a new EngagementTask
         Map<String, Object> event = this.buildEvent(url, urlRef, "heartbeat", null, null);
-        this.engagementManager = new EngagementManager(this.timer, DEFAULT_ENGAGEMENT_INTERVAL_MILLIS, event);
+        this.engagementManager = new EngagementManager(this.engagementWheel, intervalStrategy, event, null);
         this.engagementManager.start();
     }
 
@@ -260,8 +804,8 @@ public class ParselyTracker {
      *
      * Stops the engaged time tracker, sending any accumulated engaged time to Parse.ly.
      * NOTE: This **must** be called in your `MainActivity` during various Android lifecycle events
-     * like `onPause` or `onStop`. Otherwise, engaged time tracking may keep running in the background
-     * and Parse.ly values may be inaccurate.
+     * like `onPause` or `onStop`, unless `enableLifecycleTracking` was called. Otherwise, engaged
+     * time tracking may keep running in the background and Parse.ly values may be inaccurate.
      */
     public void stopEngagement() {
         if (this.engagementManager == null) {
@@ -293,8 +837,33 @@ public class ParselyTracker {
     public void trackPlay(
             @NonNull String url,
             @Nullable String urlRef,
-            @NonNull ParselyVideoMetadata videoMetadata,
+            @NonNull VideoEventMetadata videoMetadata,
             @Nullable Map<String, Object> extraData) {
+        this.trackPlay(url, urlRef, videoMetadata, extraData, this.engagementIntervalStrategy);
+    }
+
+    /*! \brief Start video tracking with a specific heartbeat interval.
+     *
+     * Same as `trackPlay(String, String, VideoEventMetadata, Map)`, but sends heartbeats for
+     * this video at the intervals given by `intervalStrategy` instead of the tracker's default.
+     * The strategy is only used if this call starts a new video; resuming a paused video keeps
+     * the strategy it was started with.
+     *
+     * @param url              URL of post the video is embedded in.
+     * @param urlRef           Referrer URL associated with this video view.
+     * @param videoMetadata    Metadata about the video being tracked.
+     * @param extraData        A Map of additional information to send with the event.
+     * @param intervalStrategy Strategy deciding how often heartbeats are sent.
+     */
+    public void trackPlay(
+            @NonNull String url,
+            @Nullable String urlRef,
+            @NonNull VideoEventMetadata videoMetadata,
+            @Nullable Map<String, Object> extraData,
+            @NonNull EngagementIntervalStrategy intervalStrategy) {
+        if (intervalStrategy == null) {
+            throw new NullPointerException("intervalStrategy cannot be null.");
+        }
         if (videoMetadata == null) {
             throw new NullPointerException("videoMetadata cannot be null.");
         }
@@ -307,28 +876,48 @@ public class ParselyTracker {
             urlRef = "";
         }
 
+        this.videoEngagementManager = this.playVideo(
+                this.videoEngagementManager, null, url, urlRef, videoMetadata, extraData, intervalStrategy);
+    }
+
+    /*! \brief Start or resume a video, reusing its engagement manager if it's the same video.
+     *
+     * @param current   The video's current engagement manager, or null.
+     * @param sessionId The engagement session playing the video, or null.
+     * @return          The engagement manager now tracking the video.
+     */
+    private EngagementManager playVideo(
+            EngagementManager current,
+            String sessionId,
+            String url,
+            String urlRef,
+            VideoEventMetadata videoMetadata,
+            Map<String, Object> extraData,
+            EngagementIntervalStrategy intervalStrategy) {
         // If there is already an engagement manager for this video make sure it is started.
-        if (this.videoEngagementManager != null) {
-            if (this.videoEngagementManager.isSameVideo(url, urlRef, videoMetadata)) {
-                if (!this.videoEngagementManager.isRunning()) {
-                    this.videoEngagementManager.start();
+        if (current != null) {
+            if (current.isSameVideo(url, urlRef, videoMetadata)) {
+                if (!current.isRunning()) {
+                    current.start();
                 }
-                return; // all done here. early exit.
+                return current; // all done here. early exit.
             } else {
-                // Different video. Stop and remove it so we can start fresh.
-                this.videoEngagementManager.stop();
-                this.videoEngagementManager = null;
+                // Different video. Stop it so we can start fresh.
+                current.stop();
             }
         }
 
         // Enqueue the videostart
-        this.enqueueEvent(this.buildEvent(url, urlRef, "videostart", videoMetadata, extraData));
+        if (this.isAdmitted("videostart")) {
+            this.enqueueEvent(this.buildEvent(url, urlRef, "videostart", videoMetadata, extraData, sessionId));
+        }
 
         // Start a new engagement manager for the video.
-        Map<String, Object> hbEvent = this.buildEvent(url, urlRef, "vheartbeat", videoMetadata, extraData);
+        Map<String, Object> hbEvent = this.buildEvent(url, urlRef, "vheartbeat", videoMetadata, extraData, sessionId);
         // TODO: Can we remove some metadata fields from this request?
-        this.videoEngagementManager = new EngagementManager(this.timer, DEFAULT_ENGAGEMENT_INTERVAL_MILLIS, hbEvent);
-        this.videoEngagementManager.start();
+        EngagementManager manager = new EngagementManager(this.engagementWheel, intervalStrategy, hbEvent, videoMetadata);
+        manager.start();
+        return manager;
     }
 
     /*! \brief Pause video tracking.
@@ -338,8 +927,8 @@ public class ParselyTracker {
      * playing video.
      *
      * NOTE: This or `resetVideo` **must** be called in your `MainActivity` during various Android lifecycle events
-     * like `onPause` or `onStop`. Otherwise, engaged time tracking may keep running in the background
-     * and Parse.ly values may be inaccurate.
+     * like `onPause` or `onStop`, unless `enableLifecycleTracking` was called. Otherwise, engaged time
+     * tracking may keep running in the background and Parse.ly values may be inaccurate.
      */
     public void trackPause() {
         if (this.videoEngagementManager == null) {
@@ -355,8 +944,8 @@ public class ParselyTracker {
      * video and (on `trackPlay` being called again) starting it over.
      *
      * NOTE: This or `trackPause` **must** be called in your `MainActivity` during various Android lifecycle events
-     * like `onPause` or `onStop`. Otherwise, engaged time tracking may keep running in the background
-     * and Parse.ly values may be inaccurate.
+     * like `onPause` or `onStop`, unless `enableLifecycleTracking` was called. Otherwise, engaged time
+     * tracking may keep running in the background and Parse.ly values may be inaccurate.
      */
     public void resetVideo() {
         if (this.videoEngagementManager == null) {
@@ -366,6 +955,188 @@ public class ParselyTracker {
         this.videoEngagementManager = null;
     }
 
+    /*! \brief Start engaged time tracking for one of several simultaneous engagement sessions.
+     *
+     * Same as `startEngagement(String, String)`, but any number of sessions, each identified by
+     * a `sessionId` of your choosing, can run at the same time and independently of the
+     * engagement started by `startEngagement`. Use this for content that is engaged with
+     * simultaneously, e.g. split-screen articles. Starting a session ID that is already in use
+     * stops that session first.
+     *
+     * All sessions share one timer, so many sessions are as cheap as one.
+     *
+     * @param sessionId Identifier of the session, used to stop it.
+     * @param url       The URL to track engaged time for.
+     * @param urlRef    Referrer URL associated with this view.
+     */
+    public void startEngagementSession(@NonNull String sessionId, @NonNull String url, @Nullable String urlRef) {
+        this.startEngagementSession(sessionId, url, urlRef, this.engagementIntervalStrategy);
+    }
+
+    /*! \brief Start an engagement session with a specific heartbeat interval.
+     *
+     * Same as `startEngagementSession(String, String, String)`, but sends heartbeats for this
+     * session at the intervals given by `intervalStrategy` instead of the tracker's default.
+     *
+     * @param sessionId        Identifier of the session, used to stop it.
+     * @param url              The URL to track engaged time for.
+     * @param urlRef           Referrer URL associated with this view.
+     * @param intervalStrategy Strategy deciding how often heartbeats are sent.
+     */
+    public void startEngagementSession(
+            @NonNull String sessionId,
+            @NonNull String url,
+            @Nullable String urlRef,
+            @NonNull EngagementIntervalStrategy intervalStrategy) {
+        if (intervalStrategy == null) {
+            throw new NullPointerException("intervalStrategy cannot be null.");
+        }
+        if (sessionId == null) {
+            throw new NullPointerException("sessionId cannot be null.");
+        }
+        if (url == null || url.equals("")) {
+            throw new NullPointerException("url cannot be null or empty.");
+        }
+
+        // Blank urlref is better than null
+        if (urlRef == null) {
+            urlRef = "";
+        }
+        this.recordInteraction();
+
+        Map<String, Object> event = this.buildEvent(url, urlRef, "heartbeat", null, null, sessionId);
+        EngagementManager manager = new EngagementManager(this.engagementWheel, intervalStrategy, event, null);
+        synchronized (this.sessions) {
+            EngagementManager previous = this.sessions.put(sessionId, manager);
+            if (previous != null) {
+                previous.stop();
+            }
+            manager.start();
+        }
+    }
+
+    /*! \brief Stop an engagement session, sending any accumulated engaged time to Parse.ly.
+     *
+     * Works for both article sessions and video sessions. For videos this is the equivalent of
+     * `resetVideo`: playing the same video again in this session sends a new `videostart`.
+     *
+     * @param sessionId The session to stop. Unknown IDs are ignored.
+     */
+    public void stopEngagementSession(@NonNull String sessionId) {
+        EngagementManager manager;
+        synchronized (this.sessions) {
+            manager = this.sessions.remove(sessionId);
+            this.sessionExtraData.remove(sessionId);
+        }
+        if (manager != null) {
+            manager.stop();
+        }
+    }
+
+    /*! \brief Start or resume video tracking in one of several simultaneous engagement sessions.
+     *
+     * Same as `trackPlay(String, String, VideoEventMetadata, Map)`, but any number of videos,
+     * each in its own session, can be tracked at the same time, e.g. the visible videos of an
+     * autoplay feed or a picture-in-picture player.
+     *
+     * @param sessionId     Identifier of the session, e.g. the position of the player.
+     * @param url           URL of post the video is embedded in.
+     * @param urlRef        Referrer URL associated with this video view.
+     * @param videoMetadata Metadata about the video being tracked.
+     * @param extraData     A Map of additional information to send with the event.
+     */
+    public void trackPlaySession(
+            @NonNull String sessionId,
+            @NonNull String url,
+            @Nullable String urlRef,
+            @NonNull VideoEventMetadata videoMetadata,
+            @Nullable Map<String, Object> extraData) {
+        this.trackPlaySession(sessionId, url, urlRef, videoMetadata, extraData, this.engagementIntervalStrategy);
+    }
+
+    /*! \brief Start or resume video tracking in an engagement session with a specific heartbeat
+     *  interval.
+     *
+     * Same as `trackPlaySession(String, String, String, VideoEventMetadata, Map)`, but sends
+     * heartbeats for this video at the intervals given by `intervalStrategy` instead of the
+     * tracker's default. The strategy is only used if this call starts a new video; resuming a
+     * paused video keeps the strategy it was started with.
+     *
+     * @param sessionId        Identifier of the session, e.g. the position of the player.
+     * @param url              URL of post the video is embedded in.
+     * @param urlRef           Referrer URL associated with this video view.
+     * @param videoMetadata    Metadata about the video being tracked.
+     * @param extraData        A Map of additional information to send with the event.
+     * @param intervalStrategy Strategy deciding how often heartbeats are sent.
+     */
+    public void trackPlaySession(
+            @NonNull String sessionId,
+            @NonNull String url,
+            @Nullable String urlRef,
+            @NonNull VideoEventMetadata videoMetadata,
+            @Nullable Map<String, Object> extraData,
+            @NonNull EngagementIntervalStrategy intervalStrategy) {
+        if (intervalStrategy == null) {
+            throw new NullPointerException("intervalStrategy cannot be null.");
+        }
+        if (sessionId == null) {
+            throw new NullPointerException("sessionId cannot be null.");
+        }
+        if (videoMetadata == null) {
+            throw new NullPointerException("videoMetadata cannot be null.");
+        }
+        if (url == null || url.equals("")) {
+            throw new NullPointerException("url cannot be null or empty.");
+        }
+
+        // Blank urlref is better than null
+        if (urlRef == null) {
+            urlRef = "";
+        }
+        synchronized (this.sessions) {
+            EngagementManager current = this.sessions.get(sessionId);
+            if (current != null && current.videoMetadata == null) {
+                // An article session being reused for a video.
+                current.stop();
+                current = null;
+            }
+            this.sessions.put(sessionId, this.playVideo(
+                    current, sessionId, url, urlRef, videoMetadata, extraData, intervalStrategy));
+        }
+    }
+
+    /*! \brief Pause video tracking in an engagement session.
+     *
+     * Same as `trackPause()` for the video of the given session.
+     *
+     * @param sessionId The session to pause. Unknown IDs are ignored.
+     */
+    public void trackPauseSession(@NonNull String sessionId) {
+        EngagementManager manager;
+        synchronized (this.sessions) {
+            manager = this.sessions.get(sessionId);
+        }
+        if (manager != null) {
+            manager.stop();
+        }
+    }
+
+    /*! \brief Get every engagement manager: the article and video ones and all sessions.
+     */
+    private ArrayList<EngagementManager> engagementManagers() {
+        ArrayList<EngagementManager> output = new ArrayList<>();
+        if (this.engagementManager != null) {
+            output.add(this.engagementManager);
+        }
+        if (this.videoEngagementManager != null) {
+            output.add(this.videoEngagementManager);
+        }
+        synchronized (this.sessions) {
+            output.addAll(this.sessions.values());
+        }
+        return output;
+    }
+
     /*! \brief Create an event Map
      *
      *  @param url       The URL identifying the pageview/heartbeat
@@ -378,11 +1149,26 @@ public class ParselyTracker {
             String url,
             String urlRef,
             String action,
-            ParselyMetadata metadata,
+            EventMetadata metadata,
             Map<String, Object> extraData) {
-        PLog("buildEvent called for %s/%s", action, url);
+        return this.buildEvent(url, urlRef, action, metadata, extraData, null);
+    }
 
-        Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    /*! \brief Create an event Map for an engagement session.
+     *
+     *  Same as `buildEvent(String, String, String, EventMetadata, Map)`, with the session's
+     *  extra data between the tracker's defaults and `extraData`.
+     *
+     *  @param sessionId The engagement session, or null.
+     */
+    private Map<String, Object> buildEvent(
+            String url,
+            String urlRef,
+            String action,
+            EventMetadata metadata,
+            Map<String, Object> extraData,
+            String sessionId) {
+        ParselyLog.d("buildEvent called for %s/%s", action, url);
 
         // Main event info
         Map<String, Object> event = new HashMap<>();
@@ -391,16 +1177,15 @@ public class ParselyTracker {
         event.put("idsite", this.siteId);
         event.put("action", action);
 
-        // Make a copy of extraData and add some things.
-        Map<String, Object> data = new HashMap<>();
+        // Make a copy of extraData over the defaults, which are only referenced, and add some things.
+        Map<String, Object> data = new LayeredMap(this.defaultExtraData(sessionId));
         if (extraData != null) {
             data.putAll(extraData);
         }
         data.put("manufacturer", this.deviceInfo.get("manufacturer"));
         data.put("os", this.deviceInfo.get("os"));
         data.put("os_version", this.deviceInfo.get("os_version"));
-        data.put("ts", now.getTimeInMillis() / 1000);
-        data.put("parsely_site_uuid", this.deviceInfo.get("parsely_site_uuid"));
+        data.put("ts", this.clock.epochSeconds());
         event.put("data", data);
 
         if (metadata != null) {
@@ -410,169 +1195,93 @@ public class ParselyTracker {
         return event;
     }
 
-    /*! \brief Add an event Map to the queue.
-     *
-     *  Place a data structure representing the event into the in-memory queue for later use.
-     *
-     *  **Note**: Events placed into this queue will be discarded if the size of the persistent queue
-     *  store exceeds `storageSizeLimit`.
+    /*! \brief The default extra data for events of a session: its own over the tracker's.
      *
-     *  @param event The event Map to enqueue.
+     *  @param sessionId The engagement session, or null for the tracker's defaults alone.
      */
-    private void enqueueEvent(Map<String, Object> event) {
-        // Push it onto the queue
-        this.eventQueue.add(event);
-        new QueueManager().execute();
-        if (this.flushTimerIsActive() == false) {
-            this.startFlushTimer();
-            PLog("Flush flushTimer set to %ds", (this.flushManager.getIntervalMillis() / 1000));
+    private Map<String, Object> defaultExtraData(String sessionId) {
+        Map<String, Object> trackerDefaults = this.defaultExtraData;
+        if (sessionId == null) {
+            return trackerDefaults;
+        }
+        synchronized (this.sessions) {
+            HashMap<String, Object> sessionDefaults = this.sessionExtraData.get(sessionId);
+            if (sessionDefaults == null) {
+                return trackerDefaults;
+            }
+            // Never written to: events add their own fields on a layer above.
+            return new LayeredMap(trackerDefaults, sessionDefaults);
         }
     }
 
-    /*!  \brief Flush events to Parsely.
+    /*! \brief Add an event Map to the queue.
      *
-     *  Empties the event queue and sends the appropriate requests to Parsely.
-     *  Called automatically after a number of seconds determined by `flushInterval`.
+     *  Place a data structure representing the event into the pipeline's in-memory queue for
+     *  later use. See `ParselyPipeline.enqueue`.
      *
-     *  To make sure all of the queued events are flushed to Parse.ly's servers,
-     * include a call to `flushEventQueue` in your main activity's `onDestroy()` method.
+     *  @param event The event Map to enqueue.
      */
-    public void flushEventQueue() {
-        // needed for call from MainActivity
-        new FlushQueue().execute();
+    private void enqueueEvent(Map<String, Object> event) {
+        this.pipeline.enqueue(event);
     }
 
-    /*!  \brief Send the batched event request to Parsely.
-     *
-     *   Creates a POST request containing the JSON encoding of the event queue.
-     *   Sends this request to Parse.ly servers.
+    /*! \brief Check sampling and rate limits for an event about to be built.
      *
-     *   @param queue The list of event dictionaries to serialize
+     *  @param action The action of the event.
+     *  @return       Whether the event should be enqueued.
      */
-    private void sendBatchRequest(ArrayList<Map<String, Object>> events) {
-        if (events == null || events.size() == 0) {
-            return;
-        }
-        PLog("Sending request with %d events", events.size());
-
-        // Put in a Map for the proxy server
-        Map<String, Object> batchMap = new HashMap<>();
-        batchMap.put("events", events);
-
-        if (this.isDebug == true) {
-            PLog("Debug mode on. Not sending to Parse.ly");
-            this.eventQueue.clear();
-            this.purgeStoredQueue();
-        } else {
-            new ParselyAPIConnection().execute(this.rootUrl + "mobileproxy", this.JsonEncode(batchMap));
-            PLog("Requested %s", this.rootUrl);
-        }
-        PLog("POST Data %s", this.JsonEncode(batchMap));
+    private boolean isAdmitted(String action) {
+        return this.pipeline.isAdmitted(action, this.identity.getResolvedId());
     }
 
-    /*! \brief Returns whether the network is accessible and Parsely is reachable.
+    /*!  \brief Flush events to Parsely.
      *
-     * @return Whether the network is accessible and Parsely is reachable.
-     */
-    private boolean isReachable() {
-        ConnectivityManager cm = (ConnectivityManager) this.context.getSystemService(
-                Context.CONNECTIVITY_SERVICE);
-        NetworkInfo netInfo = cm.getActiveNetworkInfo();
-        return netInfo != null && netInfo.isConnectedOrConnecting();
-    }
-
-    /*! \brief Save the event queue to persistent storage.
-
-     */
-    private void persistQueue() {
-        PLog("Persisting event queue");
-        ArrayList<Map<String, Object>> storedQueue = this.getStoredQueue();
-        if (storedQueue == null) {
-            storedQueue = new ArrayList<>();
-        }
-        HashSet<Map<String, Object>> hs = new HashSet<>();
-        hs.addAll(storedQueue);
-        hs.addAll(this.eventQueue);
-        storedQueue.clear();
-        storedQueue.addAll(hs);
-        this.persistObject(storedQueue);
-    }
-
-    /*! \brief Get the stored event queue from persistent storage.
+     *  Empties the event queue and sends the appropriate requests to Parsely, in the
+     *  background. Called automatically after a number of seconds determined by
+     *  `flushInterval`.
+     *
+     *  The flush may not complete before the process dies. To make sure queued events reach
+     *  Parse.ly or storage when the app exits, call `shutdown(long)` instead.
      *
-     * @return The stored queue of events.
+     *  @return The flush's outcome, to wait on or attach a callback to.
      */
-    private ArrayList<Map<String, Object>> getStoredQueue() {
-        ArrayList<Map<String, Object>> storedQueue = new ArrayList<>();
-        try {
-            FileInputStream fis = this.context.getApplicationContext().openFileInput(
-                    this.storageKey);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            //noinspection unchecked
-            storedQueue = (ArrayList<Map<String, Object>>) ois.readObject();
-            ois.close();
-        } catch (EOFException ex) {
-            // Nothing to do here.
-        } catch (FileNotFoundException ex) {
-            // Nothing to do here. Means there was no saved queue.
-        } catch (Exception ex) {
-            PLog("Exception thrown during queue deserialization: %s", ex.toString());
+    public FlushResult flushEventQueue() {
+        EngagementRollup rollup = this.engagementRollup;
+        if (rollup != null) {
+            this.emitRollups(rollup);
         }
-
-        assert storedQueue != null;
-        return storedQueue;
+        // needed for call from MainActivity
+        return this.pipeline.flush();
     }
 
-    /*! \brief Delete the stored queue from persistent storage.
+    /*! \brief Stop all engagements and send or store everything, within a bounded time.
      *
-     */
-    protected void purgeStoredQueue() {
-        this.persistObject(null);
-    }
-
-    /*! \brief Delete an event from the stored queue.
+     *  Stops every engagement and video, as `stopEngagement` and `trackPause` do, sending
+     *  their engaged time, then flushes, waiting at most `timeoutMillis`. Whatever couldn't be
+     *  sent in time is written to storage and sent on a later launch. The tracker can be used
+     *  again afterwards.
      *
-     */
-    private void expelStoredEvent() {
-        ArrayList<Map<String, Object>> storedQueue = this.getStoredQueue();
-        storedQueue.remove(0);
-    }
-
-    /*! \brief Persist an object to storage.
+     *  Blocks the calling thread for up to `timeoutMillis`; keep it short on the main thread.
      *
-     * @param o Object to store.
+     *  @param timeoutMillis How long to wait for the flush at most.
+     *  @return              The flush's outcome, which may not be complete yet.
      */
-    @TargetApi(Build.VERSION_CODES.CUPCAKE)
-    private void persistObject(Object o) {
-        try {
-            FileOutputStream fos = this.context.getApplicationContext().openFileOutput(
-                    this.storageKey,
-                    android.content.Context.MODE_PRIVATE
-            );
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(o);
-            oos.close();
-        } catch (Exception ex) {
-            PLog("Exception thrown during queue serialization: %s", ex.toString());
+    public FlushResult shutdown(long timeoutMillis) {
+        for (EngagementManager manager : this.engagementManagers()) {
+            manager.stop();
         }
+        EngagementRollup rollup = this.engagementRollup;
+        if (rollup != null) {
+            this.emitRollups(rollup);
+        }
+        return this.pipeline.drain(timeoutMillis);
     }
 
-    /*! \brief Encode an event Map as JSON.
+    /*! \brief Delete the stored queue of this process from persistent storage.
      *
-     * @param map The Map object to encode as JSON.
-     * @return    The JSON-encoded value of `map`.
      */
-    private String JsonEncode(Map<String, Object> map) {
-        ObjectMapper mapper = new ObjectMapper();
-        String ret = null;
-        try {
-            StringWriter strWriter = new StringWriter();
-            mapper.writeValue(strWriter, map);
-            ret = strWriter.toString();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return ret;
+    protected void purgeStoredQueue() {
+        this.pipeline.purgeStoredEvents();
     }
 
     /*! \brief Start the timer to flush events to Parsely.
@@ -582,7 +1291,7 @@ public class ParselyTracker {
      *  singleton
      */
     public void startFlushTimer() {
-        this.flushManager.start();
+        this.pipeline.startFlushTimer();
     }
 
     /*! \brief Returns whether the event queue flush timer is running.
@@ -590,42 +1299,14 @@ public class ParselyTracker {
      *  @return Whether the event queue flush timer is running.
      */
     public boolean flushTimerIsActive() {
-        return this.flushManager.isRunning();
+        return this.pipeline.flushTimerIsActive();
     }
 
     /*! \brief Stop the event queue flush timer.
      *
      */
     public void stopFlushTimer() {
-        this.flushManager.stop();
-    }
-
-    /*! \brief Read the Parsely UUID from application context or make a new one.
-     *
-     * @return The UUID to use for this user.
-     */
-    private String generateSiteUuid() {
-        String uuid = Secure.getString(this.context.getApplicationContext().getContentResolver(),
-                Secure.ANDROID_ID);
-        PLog(String.format("Generated UUID: %s", uuid));
-        return uuid;
-    }
-
-    /*! \brief Get the UUID for this user.
-     *
-     * TODO: docs about where we get this UUID from and how.
-     */
-    private String getSiteUuid() {
-        String uuid = "";
-        try {
-            uuid = this.settings.getString(this.uuidKey, "");
-            if (uuid.equals("")) {
-                uuid = this.generateSiteUuid();
-            }
-        } catch (Exception ex) {
-            PLog("Exception caught during site uuid generation: %s", ex.toString());
-        }
-        return uuid;
+        this.pipeline.stopFlushTimer();
     }
 
     /*! \brief Collect device-specific info.
@@ -636,9 +1317,7 @@ public class ParselyTracker {
         Map<String, String> dInfo = new HashMap<>();
 
         // TODO: screen dimensions (maybe?)
-        PLog("adkey is: %s, uuid is %s", this.adKey, this.getSiteUuid());
-        String uuid = (this.adKey != null) ? this.adKey : this.getSiteUuid();
-        dInfo.put("parsely_site_uuid", uuid);
+        // The visitor ID is bound when events are sent, see VisitorIdentity.
         dInfo.put("manufacturer", android.os.Build.MANUFACTURER);
         dInfo.put("os", "android");
         dInfo.put("os_version", String.format("%d", android.os.Build.VERSION.SDK_INT));
@@ -655,250 +1334,239 @@ public class ParselyTracker {
      * @return The number of events waiting to be flushed to Parsely.
      */
     public int queueSize() {
-        return this.eventQueue.size();
+        return this.pipeline.queueSize();
     }
 
     /*! \brief Get the number of events stored in persistent storage.
+     *
+     *  The count is kept in memory as of this process's last read or write of storage, so it
+     *  is safe to call on the main thread.
      *
      * @return The number of events stored in persistent storage.
      */
     public int storedEventsCount() {
-        ArrayList<Map<String, Object>> ar = this.getStoredQueue();
-        if (ar != null) {
-            return ar.size();
-        }
-        return 0;
-    }
-
-    @TargetApi(Build.VERSION_CODES.CUPCAKE)
-    private class QueueManager extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            ArrayList<Map<String, Object>> storedQueue = getStoredQueue();
-            // if event queue is too big, push to persisted storage
-            if (eventQueue.size() >= queueSizeLimit + 1) {
-                PLog("Queue size exceeded, expelling oldest event to persistent memory");
-                persistQueue();
-                eventQueue.remove(0);
-                // if persisted storage is too big, expel one
-                if (storedQueue != null) {
-                    if (storedEventsCount() > storageSizeLimit) {
-                        expelStoredEvent();
-                    }
-                }
-            }
-            return null;
-        }
+        return this.pipeline.knownStoredEventsCount();
     }
 
-    private class FlushQueue extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            ArrayList<Map<String, Object>> storedQueue = getStoredQueue();
-            PLog("%d events in queue, %d stored events", eventQueue.size(), storedEventsCount());
-            // in case both queues have been flushed and app quits, don't crash
-            if ((eventQueue == null || eventQueue.size() == 0) &&
-                    (storedQueue == null || storedQueue.size() == 0)) {
-                stopFlushTimer();
-                return null;
-            }
-            if (!isReachable()) {
-                PLog("Network unreachable. Not flushing.");
-                return null;
-            }
-            HashSet<Map<String, Object>> hs = new HashSet<>();
-            ArrayList<Map<String, Object>> newQueue = new ArrayList<>();
+    /*! \brief Engagement manager for article and video engagement.
+     *
+     * Implemented to handle its own queuing of future executions, on the tracker's shared
+     * timing wheel, to accomplish two things:
+     *
+     * 1. Flushing any engaged time before canceling.
+     * 2. Progressive backoff for long engagements to save data, as decided by an
+     *    `EngagementIntervalStrategy`.
+     */
+    private class EngagementManager {
 
-            hs.addAll(eventQueue);
-            if (storedQueue != null) {
-                hs.addAll(storedQueue);
+        public Map<String, Object> baseEvent;
+        private HeartbeatTemplate template;
+        private VideoEventMetadata videoMetadata;
+        private String videoLink;
+        private int videoDurationSeconds;
+        private boolean started, suspended;
+        private EngagementAccumulator accumulator;
+        private long measuredMillis;
+        private TimingWheel wheel;
+        private TimingWheel.Timeout waitingTimeout;
+        private EngagementIntervalStrategy intervalStrategy;
+        private long latestDelayMillis, totalTime, pendingTime;
+        private int heartbeatCount;
+
+
+        public EngagementManager(
+                TimingWheel wheel,
+                EngagementIntervalStrategy intervalStrategy,
+                Map<String, Object> baseEvent,
+                VideoEventMetadata videoMetadata) {
+            this.baseEvent = baseEvent;
+            if (videoMetadata != null) {
+                this.videoMetadata = videoMetadata;
+                this.videoLink = videoMetadata.getVideoId();
+                this.videoDurationSeconds = videoMetadata.getDurationSeconds();
             }
-            newQueue.addAll(hs);
-            PLog("Flushing queue");
-            sendBatchRequest(newQueue);
-            return null;
+            this.template = new HeartbeatTemplate(baseEvent);
+            this.wheel = wheel;
+            this.intervalStrategy = intervalStrategy;
+            this.latestDelayMillis = intervalStrategy.getInitialIntervalMillis();
+            this.totalTime = 0;
         }
-    }
-
-    /*! \brief Async task to get adKey for this device.
-     */
-    private class GetAdKey extends AsyncTask<Void, Void, String> {
-        private Context mContext;
 
-        public GetAdKey(Context context) {
-            mContext = context;
+        public synchronized boolean isRunning() {
+            return this.started;
         }
 
-        @Override
-        protected String doInBackground(Void... params) {
-            AdvertisingIdClient.Info idInfo = null;
-            String advertId = null;
-            try {
-                idInfo = AdvertisingIdClient.getAdvertisingIdInfo(mContext);
-            } catch (GooglePlayServicesRepairableException | IOException | GooglePlayServicesNotAvailableException e) {
-                PLog("No Google play services or error! falling back to device uuid");
-                // fall back to device uuid on google play errors
-                advertId = getSiteUuid();
-            }
-            try {
-                advertId = idInfo.getId();
-            } catch (NullPointerException e) {
-                advertId = getSiteUuid();
+        public synchronized void start() {
+            this.accumulator = engagementAccumulator;
+            if (this.accumulator != null) {
+                this.measuredMillis = this.readMeasuredMillis();
             }
-            return advertId;
-        }
-
-        @Override
-        protected void onPostExecute(String advertId) {
-            adKey = advertId;
-            deviceInfo.put("parsely_site_uuid", adKey);
+            this.scheduleNextExecution(this.latestDelayMillis);
+            this.started = true;
         }
 
-    }
-
-
-    /*! \brief Manager for the event flush timer.
-     *
-     * Handles stopping and starting the flush timer. The flush timer
-     * controls how often we send events to Parse.ly servers.
-     */
-    private class FlushManager {
-
-        private Timer parentTimer;
-        private long intervalMillis;
-        private TimerTask runningTask;
-
-        public FlushManager(Timer parentTimer, long intervalMillis) {
-            this.parentTimer = parentTimer;
-            this.intervalMillis = intervalMillis;
+        public synchronized void stop() {
+            // Only enqueue when we actually canceled something. Otherwise the heartbeat is
+            // being sent right now, and won't be rescheduled since we're no longer started.
+            if (this.started && this.waitingTimeout.cancel()) {
+                this.doEnqueue(this.waitingTimeout.getDeadlineMillis(), true);
+            }
+            this.started = false;
+            this.suspended = false;
         }
 
-        public void start() {
-            if (this.runningTask != null) {
-                return;
+        /*! \brief Send the time measured so far and continue with the tracker's current
+         *  accumulator, or on wall-clock time if there is none.
+         *
+         *  Suspended engagements pick it up when they resume.
+         */
+        public synchronized void restart() {
+            if (this.started) {
+                this.stop();
+                this.start();
             }
-
-            this.runningTask = new TimerTask() {
-                public void run() {
-                    flushEventQueue();
-                }
-            };
-            this.parentTimer.scheduleAtFixedRate(this.runningTask, intervalMillis, intervalMillis);
         }
 
-        public boolean stop() {
-            if (this.runningTask == null) {
-                return false;
-            } else {
-                boolean output = this.runningTask.cancel();
-                this.runningTask = null;
-                return output;
+        /*! \brief Stop a running engagement so that `resume()` can restart it.
+         */
+        public synchronized void suspend() {
+            if (this.started) {
+                this.stop();
+                this.suspended = true;
             }
         }
 
-        public boolean isRunning() {
-            return this.runningTask != null;
+        /*! \brief Restart an engagement stopped by `suspend()`.
+         *
+         *  Does nothing if the engagement was explicitly stopped or restarted since.
+         */
+        public synchronized void resume() {
+            if (this.suspended && !this.started) {
+                this.suspended = false;
+                this.start();
+            }
         }
 
-        public long getIntervalMillis() {
-            return this.intervalMillis;
+        /*! \brief Drop the heartbeat template's cached encoding under memory pressure.
+         */
+        public void trimMemory() {
+            this.template.trimMemory();
         }
-    }
 
-    /*! \brief Engagement manager for article and video engagement.
-     *
-     * Implemented to handle its own queuing of future executions to accomplish
-     * two things:
-     *
-     * 1. Flushing any engaged time before canceling.
-     * 2. Progressive backoff for long engagements to save data.
-     */
-    private class EngagementManager {
-
-        public Map<String, Object> baseEvent;
-        private boolean started;
-        private Timer parentTimer;
-        private TimerTask waitingTimerTask;
-        private long latestDelayMillis, totalTime;
-
-
-        public EngagementManager(Timer parentTimer, long intervalMillis, Map<String, Object> baseEvent) {
-            this.baseEvent = baseEvent;
-            this.parentTimer = parentTimer;
-            this.latestDelayMillis = intervalMillis;
-            this.totalTime = 0;
+        public boolean isSameVideo(String url, String urlRef, VideoEventMetadata metadata) {
+            if (!this.baseEvent.get("url").equals(url) || !this.baseEvent.get("urlref").equals(urlRef)) {
+                return false;
+            }
+            // Replays of the same immutable metadata match on its cached hash code.
+            if (metadata instanceof ImmutableParselyVideoMetadata && metadata.equals(this.videoMetadata)) {
+                return true;
+            }
+            return this.videoLink != null && this.videoLink.equals(metadata.getVideoId()) &&
+                    this.videoDurationSeconds == metadata.getDurationSeconds();
         }
 
-        public boolean isRunning() {
-            return this.started;
+        private void scheduleNextExecution(long delay) {
+            this.latestDelayMillis = delay;
+            this.waitingTimeout = this.wheel.schedule(new TimingWheel.Task() {
+                public void run(TimingWheel.Timeout timeout) {
+                    onHeartbeatDue(timeout);
+                }
+            }, delay);
         }
 
-        public void start() {
+        private synchronized void onHeartbeatDue(TimingWheel.Timeout timeout) {
+            if (!this.started || timeout != this.waitingTimeout) {
+                return;
+            }
+            this.doEnqueue(timeout.getDeadlineMillis(), false);
+            this.updateLatestInterval();
             this.scheduleNextExecution(this.latestDelayMillis);
-            this.started = true;
         }
 
-        public void stop() {
-            this.waitingTimerTask.cancel();
-            this.started = false;
-        }
+        /*! \brief Enqueue a heartbeat for the time engaged since the last one.
+         *
+         * @param scheduledExecutionTime When this heartbeat was scheduled to run, in
+         *                               `ParselyClock.elapsedMillis()`.
+         * @param isFinal                Whether engagement is stopping. The last heartbeat is
+         *                               never rate limited so no engaged time is lost.
+         */
+        private void doEnqueue(long scheduledExecutionTime, boolean isFinal) {
+            String action = (String) this.baseEvent.get("action");
+
+            long inc;
+            if (this.accumulator != null) {
+                // Only count whole seconds actually engaged, keeping the remainder for later.
+                inc = (this.readMeasuredMillis() - this.measuredMillis) / 1000;
+                this.measuredMillis += inc * 1000;
+            } else {
+                // Adjust inc by execution time in case we're late or early.
+                long executionDiff = (clock.elapsedMillis() - scheduledExecutionTime);
+                inc = (this.latestDelayMillis + executionDiff) / 1000;
+            }
+            this.totalTime += inc;
+            this.pendingTime += inc;
 
-        public boolean isSameVideo(String url, String urlRef, ParselyVideoMetadata metadata) {
-            Map<String, Object> baseMetadata = (Map<String, Object>) this.baseEvent.get("metadata");
-            return (this.baseEvent.get("url").equals(url) &&
-                    this.baseEvent.get("urlref").equals(urlRef) &&
-                    baseMetadata.get("link").equals(metadata.link) &&
-                    (int) (baseMetadata.get("duration")) == metadata.durationSeconds);
-        }
+            if (this.accumulator != null && this.pendingTime == 0) {
+                // Nothing engaged since the last heartbeat, nothing to send.
+                return;
+            }
 
-        private void scheduleNextExecution(long delay) {
-            TimerTask task = new TimerTask() {
-                public void run() {
-                    doEnqueue(this.scheduledExecutionTime());
-                    updateLatestInterval();
-                    scheduleNextExecution(latestDelayMillis);
+            if (!pipeline.isSampled(action, identity.getResolvedId())) {
+                this.pendingTime = 0;
+                pipeline.recordDrop(ParselyMetrics.REASON_SAMPLED, action);
+                return;
+            }
+            EngagementRollup rollup = engagementRollup;
+            if (rollup != null) {
+                // Summed into one heartbeat per window instead; no need to rate limit.
+                if (this.pendingTime > 0) {
+                    rollup.add(this.template, clock.epochSeconds(), this.pendingTime, this.totalTime);
+                    this.pendingTime = 0;
                 }
-
-                public boolean cancel() {
-                    boolean output = super.cancel();
-                    // Only enqueue when we actually canceled something. If output is false then
-                    // this has already been canceled.
-                    if (output == true) {
-                        doEnqueue(this.scheduledExecutionTime());
-                    }
-                    return output;
+                if (isFinal) {
+                    emitRollup(rollup, this.template);
+                } else {
+                    scheduleRollupWindow(rollup);
                 }
-            };
-            this.latestDelayMillis = delay;
-            this.parentTimer.schedule(task, delay);
-            this.waitingTimerTask = task;
-        }
-
-        private void doEnqueue(long scheduledExecutionTime) {
-            // Create a copy of the base event to enqueue
-            Map<String, Object> event = new HashMap(this.baseEvent);
-            PLog(String.format("Enqueuing %s event.", event.get("action")));
+                return;
+            }
+            if (!pipeline.getRateLimiter().tryAcquire(action, clock.elapsedMillis()) && !isFinal) {
+                if (ParselyLog.isLoggable(ParselyLog.DEBUG)) {
+                    ParselyLog.d("Rate limit reached for %s events. Carrying %ds over.", action, this.pendingTime);
+                }
+                pipeline.recordDrop(ParselyMetrics.REASON_RATE_LIMITED, action);
+                return;
+            }
 
-            // Update `ts` for the event since it's happening right now.
-            Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-            Map<String, Object> data = (Map<String, Object>) event.get("data");
-            data.put("ts", now.getTimeInMillis() / 1000);
+            ParselyLog.d("Enqueuing %s event.", action);
 
-            // Adjust inc by execution time in case we're late or early.
-            long executionDiff = (System.currentTimeMillis() - scheduledExecutionTime);
-            long inc = (this.latestDelayMillis + executionDiff) / 1000;
-            this.totalTime += inc;
-            event.put("inc", inc);
-            event.put("tt", this.totalTime);
+            // `ts` is the time of this heartbeat, since it's happening right now.
+            long ts = clock.epochSeconds();
+            Map<String, Object> event = new HeartbeatEvent(this.template, ts, this.pendingTime, this.totalTime);
+            this.pendingTime = 0;
 
             enqueueEvent(event);
         }
 
+        /*! \brief Read the accumulator's running total for this kind of engagement.
+         *
+         *  Videos count screen-on time, articles count interaction-driven engaged time.
+         */
+        private long readMeasuredMillis() {
+            long now = clock.elapsedMillis();
+            if ("vheartbeat".equals(this.baseEvent.get("action"))) {
+                return this.accumulator.getScreenOnMillis(now);
+            }
+            return this.accumulator.getEngagedMillis(now);
+        }
+
         private void updateLatestInterval() {
-            // Update latestDelayMillis to be used for next execution. The interval
-            // increases by 25% for each successive call, up to a max of 90s, to cut down on
-            // data use for very long engagements (e.g. streaming video).
-            this.latestDelayMillis = (int) Math.min(90000, this.latestDelayMillis * 1.25);
+            // Update latestDelayMillis to be used for next execution. With the default
+            // strategy the interval increases by 25% for each successive call, up to a max
+            // of 90s, to cut down on data use for very long engagements (e.g. streaming video).
+            this.heartbeatCount++;
+            this.latestDelayMillis = this.intervalStrategy.getNextIntervalMillis(
+                    this.latestDelayMillis, this.heartbeatCount);
         }
     }
 }
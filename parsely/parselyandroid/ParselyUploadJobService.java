@@ -0,0 +1,103 @@
+/*
+    Copyright 2016 Parse.ly, Inc.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.parsely.parselyandroid;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+/*! \brief Uploads stored events from a `JobScheduler` job.
+ *
+ *  Scheduled by the tracker when deferred delivery is enabled, see
+ *  `ParselyTracker.enableDeferredDelivery`. Flushes the tracker's pipeline, or one of its own
+ *  over the same storage when the process was started just to run the job and no tracker
+ *  exists, so stored events are sampled, batched and encoded as the tracker would. Events
+ *  are removed from storage only once Parse.ly has accepted them; on failure the job is
+ *  rescheduled with exponential backoff.
+ */
+public class ParselyUploadJobService extends JobService {
+    private static final long IDENTITY_TIMEOUT_MILLIS = 10000;
+    private static final long FLUSH_TIMEOUT_MILLIS = 60000;
+
+    private static ParselyPipeline jobPipeline;
+
+    private volatile boolean stopped;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        this.stopped = false;
+        final boolean compactWireFormat = params.getExtras().getBoolean(DeferredDelivery.EXTRA_COMPACT_WIRE_FORMAT);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean succeeded = upload(compactWireFormat);
+                jobFinished(params, !succeeded);
+            }
+        }, "ParselyUploadJob").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        this.stopped = true;
+        return true;  // constraints no longer met; try again later
+    }
+
+    /*! \brief Send stored events of every process, unless another uploader is already at it.
+     *
+     * @return Whether every stored event was sent.
+     */
+    private boolean upload(boolean compactWireFormat) {
+        ParselyPipeline pipeline = this.pipeline(compactWireFormat);
+        if (pipeline == null || this.stopped) {
+            return false;
+        }
+        FlushResult result = pipeline.flush();
+        if (!result.await(FLUSH_TIMEOUT_MILLIS)) {
+            ParselyLog.d("Deferred delivery didn't finish in time. Deferring.");
+            return false;
+        }
+        ParselyLog.d("Deferred delivery sent %d events", result.getSentCount());
+        return result.isSuccessful();
+    }
+
+    /*! \brief The tracker's pipeline, or this process's job pipeline if there is no tracker.
+     *
+     * @return The pipeline, or null if the visitor ID of a new job pipeline wasn't resolved in
+     *         time.
+     */
+    private ParselyPipeline pipeline(boolean compactWireFormat) {
+        ParselyTracker tracker = ParselyTracker.sharedInstance();
+        if (tracker != null) {
+            return tracker.getPipeline();
+        }
+        synchronized (ParselyUploadJobService.class) {
+            if (jobPipeline == null) {
+                VisitorIdentity identity = AndroidPlatform.visitorIdentity(this);
+                identity.resolveAsync();
+                if (identity.await(IDENTITY_TIMEOUT_MILLIS) == null) {
+                    ParselyLog.d("Visitor ID not resolved in time. Deferring.");
+                    return null;
+                }
+                jobPipeline = AndroidPlatform.pipelineBuilder(this).build();
+                jobPipeline.setIdentity(identity);
+            }
+            if (jobPipeline.isCompactWireFormat() != compactWireFormat) {
+                jobPipeline.setCompactWireFormat(compactWireFormat);
+            }
+            return jobPipeline;
+        }
+    }
+}